@@ -0,0 +1,399 @@
+package pc;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Micro-benchmarks for the inner kernels of {@link WordFrequency}: cleaning and
+ * tokenizing, counting, merging, sorting and top-k selection, each measured in
+ * isolation on a preloaded synthetic corpus, plus ordered counting (count then
+ * list alphabetically).
+ *
+ * Whole-program timings of WordFrequency.main mix JIT warmup, I/O and GC; here
+ * every kernel is warmed up first, then timed over several iterations, and the
+ * median time per operation is reported. Results are written to a CSV file
+ * (default benchmark.csv) with columns Kernel,Vocab,Threads,Time(ns/op).
+ *
+ * Usage: java pc.WordFrequencyBenchmark [output.csv]
+ */
+public class WordFrequencyBenchmark {
+
+  static final int[] VOCAB_SIZES = { 1_000, 10_000, 100_000 };
+  static final int[] THREADS = { 1, 2, 4, 8 };
+  static final int CORPUS_WORDS = 1_000_000;
+  static final int WARMUP_ITERATIONS = 5;
+  static final int MEASURE_ITERATIONS = 10;
+
+  private static final Pattern NON_ALPHA = Pattern.compile("[^a-zA-Z]");
+
+  /** Results are stored here so that the JIT cannot eliminate the kernels. */
+  static volatile Object sink;
+
+  /** A benchmarked piece of code, returning a result to be sunk. */
+  interface Kernel {
+    Object run() throws Exception;
+  }
+
+  /**
+   * Preloaded corpus for one vocabulary size: raw tokens as the Scanner would
+   * return them, the same tokens cleaned, and their counts.
+   */
+  static class Corpus {
+    final int vocab;
+    final String[] raw;
+    final String[] clean;
+    final Map<String, Integer> counts;
+
+    Corpus(int vocab, int numWords, long seed) {
+      this.vocab = vocab;
+      Random rand = new Random(seed);
+      String[] words = vocabulary(vocab, rand);
+      double[] cumul = zipf(vocab);
+      raw = new String[numWords];
+      clean = new String[numWords];
+      counts = new HashMap<>();
+      for (int i = 0; i < numWords; i++) {
+        int rank = Arrays.binarySearch(cumul, rand.nextDouble() * cumul[vocab - 1]);
+        String w = words[rank < 0 ? -rank - 1 : rank];
+        clean[i] = w;
+        raw[i] = decorate(w, rand);
+        counts.merge(w, 1, Integer::sum);
+      }
+    }
+
+    /** Counts the i-th of n equal slices of the clean tokens. */
+    Map<String, Integer> slice(int i, int n) {
+      Map<String, Integer> map = new HashMap<>();
+      int from = (int) ((long) clean.length * i / n);
+      int to = (int) ((long) clean.length * (i + 1) / n);
+      for (int j = from; j < to; j++) {
+        map.merge(clean[j], 1, Integer::sum);
+      }
+      return map;
+    }
+
+    private static String[] vocabulary(int size, Random rand) {
+      Set<String> seen = new HashSet<>();
+      String[] words = new String[size];
+      int n = 0;
+      while (n < size) {
+        int len = 2 + rand.nextInt(11);
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+          sb.append((char) ('a' + rand.nextInt(26)));
+        }
+        String w = sb.toString();
+        if (seen.add(w)) {
+          words[n++] = w;
+        }
+      }
+      return words;
+    }
+
+    /** Cumulative Zipf weights, s=1, as found in natural language. */
+    private static double[] zipf(int size) {
+      double[] cumul = new double[size];
+      double sum = 0;
+      for (int r = 0; r < size; r++) {
+        sum += 1.0 / (r + 1);
+        cumul[r] = sum;
+      }
+      return cumul;
+    }
+
+    /** Adds capitals and punctuation, as found in WarAndPeace.txt. */
+    private static String decorate(String w, Random rand) {
+      int r = rand.nextInt(10);
+      if (r == 0) {
+        return Character.toUpperCase(w.charAt(0)) + w.substring(1);
+      } else if (r == 1) {
+        return w + ",";
+      } else if (r == 2) {
+        return "\"" + w + ".";
+      }
+      return w;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String output = args.length > 0 ? args[0] : "benchmark.csv";
+
+    try (PrintWriter writer = new PrintWriter(output)) {
+      writer.println("Kernel,Vocab,Threads,Time(ns/op)");
+      for (int vocab : VOCAB_SIZES) {
+        Corpus corpus = new Corpus(vocab, CORPUS_WORDS, 42);
+        benchmarkClean(corpus, writer);
+        for (int threads : THREADS) {
+          benchmarkCount(corpus, threads, writer);
+          benchmarkMerge(corpus, threads, writer);
+          benchmarkOrdered(corpus, threads, writer);
+        }
+        benchmarkSort(corpus, writer);
+      }
+    }
+  }
+
+  private static void benchmarkClean(Corpus corpus, PrintWriter writer) throws Exception {
+    String[] raw = corpus.raw;
+    report("clean_regex", corpus, 1, raw.length, writer, () -> {
+      int len = 0;
+      for (String w : raw) {
+        len += WordFrequency.cleanWord(w).length();
+      }
+      return len;
+    });
+    report("clean_pattern", corpus, 1, raw.length, writer, () -> {
+      int len = 0;
+      for (String w : raw) {
+        len += NON_ALPHA.matcher(w).replaceAll("").toLowerCase().length();
+      }
+      return len;
+    });
+    report("clean_loop", corpus, 1, raw.length, writer, () -> {
+      int len = 0;
+      for (String w : raw) {
+        len += cleanWordLoop(w).length();
+      }
+      return len;
+    });
+    // whole-text tokenizers, per raw token: the words differ slightly from
+    // cleanWord's ("it's" gives two tokens)
+    byte[] text = String.join(" ", raw).getBytes(StandardCharsets.UTF_8);
+    report("tokenize_utf8", corpus, 1, raw.length, writer,
+        () -> new Utf8Tokenizer().tokenize(new ByteArrayInputStream(text), w -> {
+        }));
+    TokenDfa letters = TokenDfa.compile("[a-zA-Z]+");
+    report("tokenize_dfa", corpus, 1, raw.length, writer,
+        () -> letters.newTokenizer().tokenize(new ByteArrayInputStream(text), w -> {
+        }));
+  }
+
+  private static void benchmarkCount(Corpus corpus, int threads, PrintWriter writer) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      String[] words = corpus.clean;
+      report("count_compute", corpus, threads, words.length, writer, () -> inParallel(pool, threads, (from, to) -> {
+        Map<String, Integer> map = new HashMap<>();
+        for (int i = from; i < to; i++) {
+          map.compute(words[i], (w, c) -> c == null ? 1 : c + 1);
+        }
+        return map;
+      }));
+      report("count_getput", corpus, threads, words.length, writer, () -> inParallel(pool, threads, (from, to) -> {
+        Map<String, Integer> map = new HashMap<>();
+        for (int i = from; i < to; i++) {
+          Integer c = map.get(words[i]);
+          map.put(words[i], c == null ? 1 : c + 1);
+        }
+        return map;
+      }));
+      report("count_tree", corpus, threads, words.length, writer, () -> inParallel(pool, threads, (from, to) -> {
+        Map<String, Integer> map = new TreeMap<>();
+        for (int i = from; i < to; i++) {
+          map.compute(words[i], (w, c) -> c == null ? 1 : c + 1);
+        }
+        return map;
+      }));
+      report("count_trie", corpus, threads, words.length, writer, () -> inParallel(pool, threads, (from, to) -> {
+        Map<String, Integer> map = new RadixTrie();
+        for (int i = from; i < to; i++) {
+          map.compute(words[i], (w, c) -> c == null ? 1 : c + 1);
+        }
+        return map;
+      }));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static void benchmarkMerge(Corpus corpus, int threads, PrintWriter writer) throws Exception {
+    if (threads == 1) {
+      return; // nothing to merge
+    }
+    List<Map<String, Integer>> partials = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      partials.add(corpus.slice(i, threads));
+    }
+    // ops = number of entries folded into the first map
+    int ops = 0;
+    for (Map<String, Integer> m : partials.subList(1, threads)) {
+      ops += m.size();
+    }
+    List<Map<String, Integer>> targets = new ArrayList<>();
+    report("merge", corpus, threads, ops, writer,
+        () -> targets.add(new HashMap<>(partials.get(0))),
+        () -> {
+          Map<String, Integer> a = targets.remove(targets.size() - 1);
+          for (Map<String, Integer> b : partials.subList(1, threads)) {
+            WordFrequency.mergeInto(a, b);
+          }
+          return a;
+        });
+  }
+
+  /**
+   * Count then list alphabetically: a TreeMap (sequential, as in tree mode),
+   * local HashMaps merged then sorted (shard), one shared skip list
+   * (skiplist), or sorted byte arenas merged by runs (sortagg).
+   */
+  private static void benchmarkOrdered(Corpus corpus, int threads, PrintWriter writer) throws Exception {
+    String[] words = corpus.clean;
+    if (threads == 1) {
+      report("ordered_tree", corpus, 1, words.length, writer, () -> {
+        Map<String, Integer> map = new TreeMap<>();
+        for (String w : words) {
+          map.merge(w, 1, Integer::sum);
+        }
+        return new ArrayList<>(map.keySet());
+      });
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      report("ordered_shard", corpus, threads, words.length, writer, () -> {
+        List<Map<String, Integer>> maps = Collections.synchronizedList(new ArrayList<>());
+        inParallel(pool, threads, (from, to) -> {
+          Map<String, Integer> map = new HashMap<>();
+          for (int i = from; i < to; i++) {
+            map.merge(words[i], 1, Integer::sum);
+          }
+          maps.add(map);
+          return map;
+        });
+        Map<String, Integer> total = new HashMap<>();
+        for (Map<String, Integer> m : maps) {
+          WordFrequency.mergeInto(total, m);
+        }
+        List<String> sorted = new ArrayList<>(total.keySet());
+        sorted.sort(null);
+        return sorted;
+      });
+      report("ordered_skiplist", corpus, threads, words.length, writer, () -> {
+        SkipListCounter counter = new SkipListCounter();
+        inParallel(pool, threads, (from, to) -> {
+          for (int i = from; i < to; i++) {
+            counter.add(words[i]);
+          }
+          return counter;
+        });
+        return new ArrayList<>(counter.counts().keySet());
+      });
+      byte[][] bytes = new byte[words.length][];
+      for (int i = 0; i < words.length; i++) {
+        bytes[i] = words[i].getBytes(StandardCharsets.US_ASCII);
+      }
+      report("ordered_sortagg", corpus, threads, words.length, writer, () -> {
+        List<SortAggregator.Run> runs = Collections.synchronizedList(new ArrayList<>());
+        inParallel(pool, threads, (from, to) -> {
+          SortAggregator.Arena arena = new SortAggregator.Arena();
+          for (int i = from; i < to; i++) {
+            arena.add(bytes[i]);
+          }
+          runs.add(arena.toRun());
+          return arena;
+        });
+        Map<String, Integer> total = new LinkedHashMap<>();
+        SortAggregator.merge(runs, total);
+        return new ArrayList<>(total.keySet());
+      });
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static void benchmarkSort(Corpus corpus, PrintWriter writer) throws Exception {
+    report("sort", corpus, 1, corpus.counts.size(), writer, () -> WordFrequency.sortByFrequency(corpus.counts));
+    report("top5", corpus, 1, corpus.counts.size(), writer, () -> WordFrequency.topByFrequency(corpus.counts, 5));
+  }
+
+  /** A regex-free cleanWord: keeps ASCII letters, lowercased. */
+  static String cleanWordLoop(String word) {
+    StringBuilder sb = null;
+    int n = word.length();
+    for (int i = 0; i < n; i++) {
+      char c = word.charAt(i);
+      boolean lower = c >= 'a' && c <= 'z';
+      if (!lower && sb == null) {
+        sb = new StringBuilder(n);
+        sb.append(word, 0, i);
+      }
+      if (lower) {
+        if (sb != null) {
+          sb.append(c);
+        }
+      } else if (c >= 'A' && c <= 'Z') {
+        sb.append((char) (c + ('a' - 'A')));
+      }
+    }
+    return sb == null ? word : sb.toString();
+  }
+
+  /** A task over the index range [from, to) of the corpus. */
+  interface RangeTask {
+    Object run(int from, int to);
+  }
+
+  private static Object inParallel(ExecutorService pool, int threads, RangeTask task)
+      throws InterruptedException, ExecutionException {
+    int size = CORPUS_WORDS;
+    List<Future<Object>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int from = (int) ((long) size * t / threads);
+      int to = (int) ((long) size * (t + 1) / threads);
+      futures.add(pool.submit(() -> task.run(from, to)));
+    }
+    Object last = null;
+    for (Future<Object> f : futures) {
+      last = f.get();
+    }
+    return last;
+  }
+
+  private static void report(String name, Corpus corpus, int threads, int ops, PrintWriter writer, Kernel kernel)
+      throws Exception {
+    report(name, corpus, threads, ops, writer, () -> {
+    }, kernel);
+  }
+
+  /**
+   * Runs setup (untimed) then kernel, WARMUP_ITERATIONS times without
+   * recording, then MEASURE_ITERATIONS times, and reports the median time
+   * divided by ops.
+   */
+  private static void report(String name, Corpus corpus, int threads, int ops, PrintWriter writer, Runnable setup,
+      Kernel kernel) throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      setup.run();
+      sink = kernel.run();
+    }
+    long[] times = new long[MEASURE_ITERATIONS];
+    for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+      setup.run();
+      long start = System.nanoTime();
+      sink = kernel.run();
+      times[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(times);
+    double nsPerOp = (double) times[MEASURE_ITERATIONS / 2] / Math.max(1, ops);
+    String line = name + "," + corpus.vocab + "," + threads + "," + String.format(Locale.ROOT, "%.2f", nsPerOp);
+    System.out.println(line);
+    writer.println(line);
+  }
+}
@@ -0,0 +1,236 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the occurrences of a fixed list of words with an Aho-Corasick
+ * automaton over bytes (used in "watch" mode).
+ *
+ * The text is read as a stream of symbols: a separator for a run of whitespace,
+ * a letter (a-z, case folded) for an ASCII letter, and nothing for any other
+ * byte, which is what cleanWord keeps of each token. Each word w is compiled
+ * as the pattern "separator w separator", so a match is exactly a whole word as
+ * counted by the other modes, and consecutive words can share their
+ * separator. No pattern is a proper suffix of another one, so each state
+ * outputs at most one pattern and no output links are needed.
+ *
+ * The automaton is a complete DFA stored in a flat int array: the next state
+ * of state s on symbol c is delta[s * SYMBOLS + c], one lookup per byte. Each
+ * worker counts matches in its own long[] indexed by pattern id, and the
+ * arrays are summed at the end: no map is built while scanning.
+ */
+class AhoCorasick {
+
+  private static final int SYMBOLS = 27; // separator, a-z
+  private static final int SEPARATOR = 0;
+  private static final int SKIP = -1;
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  /** Symbol of each byte: SEPARATOR, 1 to 26 for letters, or SKIP. */
+  private static final int[] SYMBOL = new int[256];
+  static {
+    for (int b = 0; b < 256; b++) {
+      if (b < 128 && Character.isWhitespace(b)) {
+        SYMBOL[b] = SEPARATOR;
+      } else if (b >= 'a' && b <= 'z') {
+        SYMBOL[b] = b - 'a' + 1;
+      } else if (b >= 'A' && b <= 'Z') {
+        SYMBOL[b] = b - 'A' + 1;
+      } else {
+        SYMBOL[b] = SKIP;
+      }
+    }
+  }
+
+  private final String[] words;
+  private final int[] delta;
+  private final int[] output; // pattern id of each state, or -1
+
+  /**
+   * Compiles the automaton.
+   *
+   * @param words distinct, non empty words made of letters a-z
+   */
+  AhoCorasick(List<String> words) {
+    this.words = words.toArray(new String[0]);
+
+    // trie of the patterns, -1 for missing transitions, sized to its exact
+    // number of states: in alphabetical order, each pattern (separator, word,
+    // separator) adds the states past the prefix it shares with the previous one
+    String[] sorted = this.words.clone();
+    Arrays.sort(sorted);
+    long capacity = 1;
+    for (int i = 0; i < sorted.length; i++) {
+      int shared = i == 0 ? -1 : commonPrefix(sorted[i - 1], sorted[i]);
+      capacity += sorted[i].length() + 1 - shared;
+    }
+    if (capacity * SYMBOLS > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("Too many states for the watch list: " + capacity);
+    }
+    int[] next = new int[(int) capacity * SYMBOLS];
+    Arrays.fill(next, -1);
+    int[] out = new int[(int) capacity];
+    Arrays.fill(out, -1);
+    int states = 1;
+    for (int id = 0; id < this.words.length; id++) {
+      String w = this.words[id];
+      int s = 0;
+      for (int i = -1; i <= w.length(); i++) {
+        int c = SEPARATOR;
+        if (i >= 0 && i < w.length()) {
+          char ch = w.charAt(i);
+          if (ch < 'a' || ch > 'z') {
+            throw new IllegalArgumentException("Not a lowercase word: " + w);
+          }
+          c = ch - 'a' + 1;
+        }
+        if (next[s * SYMBOLS + c] < 0) {
+          next[s * SYMBOLS + c] = states++;
+        }
+        s = next[s * SYMBOLS + c];
+      }
+      out[s] = id;
+    }
+
+    // breadth first: fill the missing transitions from the failure links
+    int[] fail = new int[states];
+    int[] queue = new int[states];
+    int head = 0;
+    int tail = 0;
+    for (int c = 0; c < SYMBOLS; c++) {
+      int t = next[c];
+      if (t < 0) {
+        next[c] = 0;
+      } else {
+        fail[t] = 0;
+        queue[tail++] = t;
+      }
+    }
+    while (head < tail) {
+      int s = queue[head++];
+      for (int c = 0; c < SYMBOLS; c++) {
+        int t = next[s * SYMBOLS + c];
+        if (t < 0) {
+          next[s * SYMBOLS + c] = next[fail[s] * SYMBOLS + c];
+        } else {
+          fail[t] = next[fail[s] * SYMBOLS + c];
+          queue[tail++] = t;
+        }
+      }
+    }
+    // exact unless words repeat
+    this.delta = states == capacity ? next : Arrays.copyOf(next, states * SYMBOLS);
+    this.output = states == capacity ? out : Arrays.copyOf(out, states);
+  }
+
+  private static int commonPrefix(String a, String b) {
+    int n = Math.min(a.length(), b.length());
+    int i = 0;
+    while (i < n && a.charAt(i) == b.charAt(i)) {
+      i++;
+    }
+    return i;
+  }
+
+  /** Number of states of the automaton. */
+  int states() {
+    return output.length;
+  }
+
+  /**
+   * Scans a stream, adding the matches of each pattern to counts.
+   *
+   * @return the number of words (tokens with at least one letter) read
+   * @throws IOException if reading fails
+   */
+  long scan(InputStream in, long[] counts) throws IOException {
+    byte[] block = new byte[BLOCK_SIZE];
+    long totalWords = 0;
+    // the stream starts and ends with a separator
+    int s = delta[SEPARATOR];
+    boolean inWord = false;
+    int n;
+    while ((n = in.read(block)) > 0) {
+      for (int i = 0; i < n; i++) {
+        int c = SYMBOL[block[i] & 0xFF];
+        if (c == SEPARATOR) {
+          if (!inWord) {
+            continue; // runs of separators count as one
+          }
+          inWord = false;
+          totalWords++;
+        } else if (c == SKIP) {
+          continue;
+        } else {
+          inWord = true;
+        }
+        s = delta[s * SYMBOLS + c];
+        int id = output[s];
+        if (id >= 0) {
+          counts[id]++;
+        }
+      }
+    }
+    if (inWord) {
+      totalWords++;
+      s = delta[s * SYMBOLS + SEPARATOR];
+      int id = output[s];
+      if (id >= 0) {
+        counts[id]++;
+      }
+    }
+    return totalWords;
+  }
+
+  /** Scans the byte range [start, end) of a file into its own counts. */
+  private class WatchWorker extends RangeWorker {
+    private final File file;
+    private final long[] counts = new long[words.length];
+
+    WatchWorker(File file, long start, long end, RunStats stats) {
+      super(start, end, stats);
+      this.file = file;
+    }
+
+    @Override
+    void work() throws IOException {
+      try (InputStream in = FileUtils.getRange(file, start, end)) {
+        totalWords = scan(in, counts);
+      }
+    }
+  }
+
+  /**
+   * Scans each range [parts[i], parts[i+1]) of the file in its own thread, then
+   * sums the counts.
+   *
+   * @param map receives the count of each watched word found at least once
+   * @return the number of words read
+   * @throws IOException if reading fails
+   */
+  long count(File file, long[] parts, Map<String, Integer> map, RunStats stats) throws IOException {
+    List<WatchWorker> workers = RangeWorker.runAll(parts, (start, end) -> new WatchWorker(file, start, end, stats));
+    long totalWords = 0;
+    long[] counts = new long[words.length];
+    for (WatchWorker worker : workers) {
+      totalWords += worker.totalWords;
+      for (int id = 0; id < counts.length; id++) {
+        counts[id] += worker.counts[id];
+      }
+    }
+
+    long time = System.nanoTime();
+    for (int id = 0; id < counts.length; id++) {
+      if (counts[id] > 0) {
+        map.put(words[id], (int) counts[id]);
+      }
+    }
+    stats.phase("merge", System.nanoTime() - time);
+    return totalWords;
+  }
+}
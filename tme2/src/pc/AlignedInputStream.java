@@ -0,0 +1,136 @@
+package pc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * A decorator InputStream reading the tokens that start in the byte range
+ * [start, end) of a file, whatever the range: the partial token at the start
+ * (if the byte before start is not whitespace) is skipped, as it belongs to
+ * the previous range, and the last token is read past end up to its first
+ * whitespace byte. Ranges cut at arbitrary offsets thus split the tokens of
+ * the file exactly, without looking for boundaries beforehand. It also closes
+ * the underlying RandomAccessFile when closed.
+ *
+ * The underlying stream must start at start - 1 (or at 0 if start is 0).
+ */
+class AlignedInputStream extends FilterInputStream {
+  private final RandomAccessFile raf; // to close it properly
+  private final long start;
+  private final long end;
+  private long position;
+  private boolean started;
+  private boolean done;
+  private int last = ' '; // last byte returned
+
+  public AlignedInputStream(InputStream in, RandomAccessFile raf, long start, long end) {
+    super(in);
+    this.raf = raf;
+    this.start = start;
+    this.end = end;
+    this.position = start == 0 ? 0 : start - 1;
+  }
+
+  private static boolean isWhitespace(int b) {
+    return Character.isWhitespace(b);
+  }
+
+  /** Skips the token crossing start, if any. */
+  private void begin() throws IOException {
+    started = true;
+    if (start == 0) {
+      return;
+    }
+    int b = super.read();
+    position++;
+    while (b != -1 && !isWhitespace(b)) {
+      b = super.read();
+      position++;
+    }
+    if (b == -1 || position >= end) {
+      done = true; // no token starts in the range
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!started) {
+      begin();
+    }
+    if (done) {
+      return -1;
+    }
+    if (position >= end && isWhitespace(last)) {
+      done = true;
+      return -1;
+    }
+    int b = super.read();
+    if (b == -1 || position >= end && isWhitespace(b)) {
+      done = true; // end of file, or end of the last token
+      return -1;
+    }
+    position++;
+    last = b;
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!started) {
+      begin();
+    }
+    if (done) {
+      return -1;
+    }
+    if (position >= end) {
+      // past the end: finish the last token byte by byte
+      int n = 0;
+      int c;
+      while (n < len && (c = read()) != -1) {
+        b[off + n++] = (byte) c;
+      }
+      return n == 0 ? -1 : n;
+    }
+    int read = super.read(b, off, (int) Math.min(len, end - position));
+    if (read <= 0) {
+      done = read < 0;
+      return read;
+    }
+    position += read;
+    last = b[off + read - 1] & 0xFF;
+    return read;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n && read() != -1) {
+      skipped++;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return done ? 0 : (int) Math.max(0, Math.min(super.available(), end - position));
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+}
@@ -0,0 +1,145 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * Chooses the mode and number of workers of a run (mode or number of threads
+ * "auto").
+ *
+ * The plan comes from a simple cost model fed by measurements taken on the
+ * spot: the number of available processors, the read throughput of the file
+ * (first READ_SAMPLE bytes), and the counting throughput and merge cost of one
+ * worker on a COUNT_SAMPLE byte range from the middle of the file. For N
+ * workers, the estimated time is the scan (counting split over min(N,
+ * processors) cores, but never faster than reading) plus the merge of the N
+ * local maps, whose vocabulary is extrapolated from the sample with Heaps' law
+ * (vocabulary ~ sqrt(text size)). The N with the lowest estimate wins: 1 means
+ * sequential "hash" mode, more means "shard" mode.
+ *
+ * Standard input cannot be sampled without consuming it, so it always gets
+ * "pipe" mode with one worker per processor. An empty file gets "hash" mode,
+ * with nothing to measure.
+ */
+class AutoTuner {
+
+  static final int READ_SAMPLE = 16 << 20;
+  static final int COUNT_SAMPLE = 1 << 20;
+
+  /** The chosen mode and number of workers, and why. */
+  static class Plan {
+    final String mode;
+    final int threads;
+    final String reason;
+
+    Plan(String mode, int threads, String reason) {
+      this.mode = mode;
+      this.threads = threads;
+      this.reason = reason;
+    }
+
+    @Override
+    public String toString() {
+      return "mode=" + mode + " N=" + threads + " (" + reason + ")";
+    }
+  }
+
+  private AutoTuner() {
+  }
+
+  /** The plan for standard input. */
+  static Plan planStdin() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    return new Plan("pipe", processors, "standard input, processors=" + processors);
+  }
+
+  /**
+   * Measures the machine and the file, then picks the plan with the lowest
+   * estimated time.
+   *
+   * @throws IOException if the file cannot be read
+   */
+  static Plan plan(File file, RunStats stats) throws IOException {
+    long time = System.nanoTime();
+    int processors = Runtime.getRuntime().availableProcessors();
+    long size = file.length();
+    if (size == 0) {
+      return new Plan("hash", 1, "empty file");
+    }
+    double readNanosPerByte = measureRead(file);
+
+    // calibrate one worker on a range from the middle of the file, twice so
+    // that the second run is not dominated by JIT warmup
+    long start = 0;
+    long end = size;
+    if (size > COUNT_SAMPLE) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        long s = FileUtils.nextBoundary(raf, (size - COUNT_SAMPLE) / 2, size);
+        long e = s < 0 ? -1 : FileUtils.nextBoundary(raf, s + COUNT_SAMPLE, size);
+        if (s >= 0) {
+          start = s;
+          end = e < 0 ? size : e;
+        }
+      }
+    }
+    RunStats untimed = new RunStats(false);
+    Map<String, Integer> sample = null;
+    long countNanos = 0;
+    for (int run = 0; run < 2; run++) {
+      sample = new HashMap<>();
+      long t = System.nanoTime();
+      try (InputStream in = FileUtils.getRange(file, start, end); Scanner scanner = new Scanner(in)) {
+        WordFrequency.countWords(scanner, sample, WordFrequency.COMPUTE, untimed, untimed.newWorker(start, end));
+      }
+      countNanos = System.nanoTime() - t;
+    }
+    long sampleBytes = Math.max(1, end - start);
+    double countNanosPerByte = (double) countNanos / sampleBytes;
+    long t = System.nanoTime();
+    WordFrequency.mergeInto(new HashMap<>(), sample);
+    double mergeNanosPerEntry = (double) (System.nanoTime() - t) / Math.max(1, sample.size());
+
+    // estimated time for each number of workers
+    int best = 1;
+    double bestNanos = Double.MAX_VALUE;
+    for (int n = 1; n <= processors; n++) {
+      double scan = Math.max(size * countNanosPerByte / n, size * readNanosPerByte);
+      double vocabulary = sample.size() * Math.sqrt((double) size / n / sampleBytes);
+      double merge = n == 1 ? 0 : n * vocabulary * mergeNanosPerEntry;
+      if (scan + merge < bestNanos) {
+        best = n;
+        bestNanos = scan + merge;
+      }
+    }
+    stats.phase("auto", System.nanoTime() - time);
+
+    String reason = String.format(Locale.ROOT,
+        "processors=%d, read %.0f MB/s, count %.1f MB/s per worker, merge %.0f ns/entry, estimated %.0f ms",
+        processors, 1e3 / readNanosPerByte, 1e3 / countNanosPerByte, mergeNanosPerEntry, bestNanos / 1e6);
+    return new Plan(best == 1 ? "hash" : "shard", best, reason);
+  }
+
+  /** Nanoseconds per byte to read the first READ_SAMPLE bytes of the file. */
+  private static double measureRead(File file) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    long bytes = 0;
+    long time = System.nanoTime();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      int n;
+      while (bytes < READ_SAMPLE && (n = channel.read(buffer)) > 0) {
+        bytes += n;
+        buffer.clear();
+      }
+    }
+    return (double) (System.nanoTime() - time) / Math.max(1, bytes);
+  }
+}
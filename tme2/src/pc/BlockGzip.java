@@ -0,0 +1,334 @@
+package pc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Splittable gzip files (used in "gzip" mode).
+ *
+ * A block gzip file is a valid multi-member gzip file (zcat reads it as
+ * usual) where each member compresses one block of about blockSize bytes of
+ * text, cut just after a whitespace byte. A sidecar index file (same name plus
+ * ".idx") gives the compressed and uncompressed offset and length of each
+ * block, so that workers can seek to their own blocks and inflate them in
+ * parallel, each with its own Inflater.
+ *
+ * The main method of this class rewrites a plain file into this format:
+ * java pc.BlockGzip input output.gz [blockSizeKB]
+ */
+class BlockGzip {
+
+  static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+  private static final int INDEX_MAGIC = 0x57464749; // "WFGI"
+  private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+  private static final int TRAILER_SIZE = 8;
+
+  /** The block index, read from the sidecar file. */
+  static class Index {
+    final long[] compressedOffset;
+    final int[] compressedLength;
+    final long[] offset; // uncompressed, offset[size()] is the total size
+    final int[] length;
+
+    Index(int blocks) {
+      compressedOffset = new long[blocks];
+      compressedLength = new int[blocks];
+      offset = new long[blocks + 1];
+      length = new int[blocks];
+    }
+
+    int size() {
+      return length.length;
+    }
+
+    /** Total uncompressed size. */
+    long uncompressedSize() {
+      return offset[size()];
+    }
+
+    static File sidecar(File gz) {
+      return new File(gz.getPath() + ".idx");
+    }
+
+    static Index read(File gz) throws IOException {
+      File idx = sidecar(gz);
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)))) {
+        if (in.readInt() != INDEX_MAGIC) {
+          throw new IOException("Not a block gzip index: " + idx);
+        }
+        Index index = new Index(in.readInt());
+        for (int i = 0; i < index.size(); i++) {
+          index.compressedOffset[i] = in.readLong();
+          index.compressedLength[i] = in.readInt();
+          index.length[i] = in.readInt();
+          index.offset[i + 1] = index.offset[i] + index.length[i];
+        }
+        return index;
+      }
+    }
+
+    void write(File gz) throws IOException {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(sidecar(gz))))) {
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(size());
+        for (int i = 0; i < size(); i++) {
+          out.writeLong(compressedOffset[i]);
+          out.writeInt(compressedLength[i]);
+          out.writeInt(length[i]);
+        }
+      }
+    }
+
+    /**
+     * Splits the blocks in numParts runs of about equal uncompressed size.
+     *
+     * @return uncompressed offsets [0, p1, ..., size], all at block starts
+     */
+    long[] partition(int numParts) {
+      long[] parts = new long[numParts + 1];
+      for (int i = 1; i < numParts; i++) {
+        int b = Arrays.binarySearch(offset, uncompressedSize() * i / numParts);
+        parts[i] = Math.max(parts[i - 1], offset[b < 0 ? -b - 1 : b]);
+      }
+      parts[numParts] = uncompressedSize();
+      return parts;
+    }
+  }
+
+  /**
+   * Rewrites a plain file as a block gzip file and its index.
+   *
+   * @param in        the plain file
+   * @param out       the block gzip file to write
+   * @param blockSize minimal uncompressed size of a block
+   * @throws IOException if reading or writing fails
+   */
+  static void compress(File in, File out, int blockSize) throws IOException {
+    long size = in.length();
+    Index index = new Index((int) (size / blockSize) + 1);
+    int blocks = 0;
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    CRC32 crc = new CRC32();
+    byte[] block = new byte[blockSize];
+    byte[] compressed = new byte[4096];
+    long compressedOffset = 0;
+    try (InputStream src = new BufferedInputStream(new FileInputStream(in));
+        OutputStream dst = new BufferedOutputStream(new FileOutputStream(out))) {
+      while (true) {
+        // a block of blockSize bytes, extended up to the next whitespace
+        int len = src.readNBytes(block, 0, blockSize);
+        if (len == 0) {
+          break;
+        }
+        if (len == blockSize) {
+          int c;
+          while ((c = src.read()) != -1) {
+            if (len == block.length) {
+              block = Arrays.copyOf(block, 2 * block.length);
+            }
+            block[len++] = (byte) c;
+            if (Character.isWhitespace(c)) {
+              break;
+            }
+          }
+        }
+
+        // one gzip member: header, raw deflate data, CRC32 and size trailer
+        long start = compressedOffset;
+        dst.write(HEADER);
+        compressedOffset += HEADER.length;
+        deflater.reset();
+        deflater.setInput(block, 0, len);
+        deflater.finish();
+        while (!deflater.finished()) {
+          int n = deflater.deflate(compressed);
+          dst.write(compressed, 0, n);
+          compressedOffset += n;
+        }
+        crc.reset();
+        crc.update(block, 0, len);
+        writeIntLE(dst, (int) crc.getValue());
+        writeIntLE(dst, len);
+        compressedOffset += TRAILER_SIZE;
+
+        index.compressedOffset[blocks] = start;
+        index.compressedLength[blocks] = (int) (compressedOffset - start);
+        index.length[blocks] = len;
+        index.offset[blocks + 1] = index.offset[blocks] + len;
+        blocks++;
+        if (blocks == index.size()) {
+          break; // the input grew while reading, ignore the rest
+        }
+      }
+    } finally {
+      deflater.end();
+    }
+    Index trimmed = new Index(blocks);
+    System.arraycopy(index.compressedOffset, 0, trimmed.compressedOffset, 0, blocks);
+    System.arraycopy(index.compressedLength, 0, trimmed.compressedLength, 0, blocks);
+    System.arraycopy(index.length, 0, trimmed.length, 0, blocks);
+    System.arraycopy(index.offset, 0, trimmed.offset, 0, blocks + 1);
+    trimmed.write(out);
+  }
+
+  private static void writeIntLE(OutputStream out, int v) throws IOException {
+    out.write(v);
+    out.write(v >>> 8);
+    out.write(v >>> 16);
+    out.write(v >>> 24);
+  }
+
+  /**
+   * Returns an InputStream of the uncompressed bytes [start, end), which must be
+   * block boundaries as returned by Index.partition. Blocks are read and
+   * inflated one at a time, with a single Inflater.
+   */
+  static InputStream getRange(File gz, Index index, long start, long end) throws IOException {
+    int from = Arrays.binarySearch(index.offset, start);
+    int to = Arrays.binarySearch(index.offset, end);
+    if (from < 0 || to < 0 || to < from) {
+      throw new IllegalArgumentException("Not a block range: start=" + start + ", end=" + end);
+    }
+    return new BlockInputStream(gz, index, from, to);
+  }
+
+  /** Inflates the blocks [from, to) of a block gzip file. */
+  private static class BlockInputStream extends InputStream {
+    private final RandomAccessFile raf;
+    private final Index index;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private int next;
+    private final int to;
+    private byte[] compressed = new byte[0];
+    private byte[] block = new byte[0];
+    private int pos;
+    private int limit;
+
+    BlockInputStream(File gz, Index index, int from, int to) throws IOException {
+      this.raf = new RandomAccessFile(gz, "r");
+      this.index = index;
+      this.next = from;
+      this.to = to;
+    }
+
+    /** Reads and inflates the next block, returns false after the last one. */
+    private boolean nextBlock() throws IOException {
+      if (next == to) {
+        return false;
+      }
+      int clen = index.compressedLength[next];
+      int len = index.length[next];
+      if (compressed.length < clen) {
+        compressed = new byte[clen];
+      }
+      if (block.length < len) {
+        block = new byte[len];
+      }
+      raf.seek(index.compressedOffset[next]);
+      raf.readFully(compressed, 0, clen);
+      if (compressed[0] != HEADER[0] || compressed[1] != HEADER[1] || compressed[3] != 0) {
+        throw new IOException("Unexpected gzip member header in block " + next);
+      }
+      inflater.reset();
+      inflater.setInput(compressed, HEADER.length, clen - HEADER.length - TRAILER_SIZE);
+      try {
+        int n = 0;
+        while (n < len && !inflater.finished()) {
+          int k = inflater.inflate(block, n, len - n);
+          if (k == 0 && inflater.needsDictionary()) {
+            throw new ZipException("Block " + next + " needs a preset dictionary");
+          }
+          if (k == 0 && inflater.needsInput()) {
+            throw new EOFException("Block " + next + " is truncated");
+          }
+          n += k;
+        }
+        if (n != len) {
+          throw new IOException("Block " + next + " is shorter than its index entry");
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt block " + next, e);
+      }
+      crc.reset();
+      crc.update(block, 0, len);
+      int t = clen - TRAILER_SIZE;
+      int expected = (compressed[t] & 0xff) | (compressed[t + 1] & 0xff) << 8 | (compressed[t + 2] & 0xff) << 16
+          | (compressed[t + 3] & 0xff) << 24;
+      if ((int) crc.getValue() != expected) {
+        throw new IOException("CRC mismatch in block " + next);
+      }
+      pos = 0;
+      limit = len;
+      next++;
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      while (pos == limit) {
+        if (!nextBlock()) {
+          return -1;
+        }
+      }
+      return block[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (pos == limit) {
+        if (!nextBlock()) {
+          return -1;
+        }
+      }
+      int n = Math.min(len, limit - pos);
+      System.arraycopy(block, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        inflater.end();
+      } finally {
+        raf.close();
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: java pc.BlockGzip input output.gz [blockSizeKB]");
+      System.exit(1);
+    }
+    File in = new File(args[0]);
+    File out = new File(args[1]);
+    int blockSize = args.length > 2 ? Integer.parseInt(args[2]) * 1024 : DEFAULT_BLOCK_SIZE;
+    long time = System.currentTimeMillis();
+    compress(in, out, blockSize);
+    System.out.println("Compressed " + in.length() + " B into " + out.length() + " B ("
+        + Index.read(out).size() + " blocks) in " + (System.currentTimeMillis() - time) + " ms");
+  }
+}
@@ -0,0 +1,215 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parallel count of the values of one column of a CSV/TSV file (used in
+ * "field" mode).
+ *
+ * Quoted fields may contain delimiters and newlines, so a record boundary
+ * cannot be found by looking for a newline near a cut as FileUtils.partition
+ * does: whether a newline ends a record depends on every quote before it. The
+ * file is instead cut at exact size/N offsets, and the worker of each range
+ * parses it speculatively twice at once, assuming the range starts outside
+ * quotes and inside quotes. Each interpretation skips up to its first record
+ * boundary (the tail of the previous range's last record), counts the records
+ * starting in the range, finishing the last one past the end, and notes
+ * whether the range ends inside quotes. Once all workers are done the start
+ * state of each range is known from the previous one, from the first range
+ * (which starts outside quotes) onwards, and the matching interpretation is
+ * kept.
+ *
+ * Fields follow RFC 4180: a doubled quote inside quotes is a literal quote, a
+ * trailing carriage return is dropped. Records without the column are not
+ * counted.
+ */
+class FieldCounter {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  private final int column;
+  private final byte delimiter;
+
+  /**
+   * @param column    the column to count, from 0
+   * @param delimiter the field delimiter, ',' or '\t' usually
+   */
+  FieldCounter(File file, int column, byte delimiter) {
+    this.file = file;
+    this.column = column;
+    this.delimiter = delimiter;
+  }
+
+  /** One interpretation of a range, from a given quote state. */
+  private class Parser {
+    private final long start;
+    private final long end;
+    private final Map<String, Integer> counts = new HashMap<>();
+    private long records;
+    private boolean inQuotes;
+    private boolean skipping; // before the first record boundary
+    private boolean endInQuotes;
+    private boolean done;
+    private boolean started; // any byte in the current record
+    private byte previous;
+    private int field; // index of the current field
+    private byte[] value = new byte[64];
+    private int length;
+
+    Parser(long start, long end, boolean inQuotes) {
+      this.start = start;
+      this.end = end;
+      this.inQuotes = inQuotes;
+      this.skipping = start > 0;
+      this.endInQuotes = inQuotes;
+    }
+
+    /** Parses buf[from, to), read from position onwards. */
+    void parse(byte[] buf, int from, int to, long position) {
+      if (done) {
+        return;
+      }
+      for (int i = from; i < to; i++, position++) {
+        if (position == end) {
+          endInQuotes = inQuotes;
+          if (skipping) {
+            done = true; // no record starts in the range
+            return;
+          }
+        }
+        byte b = buf[i];
+        if (position < start) {
+          // the byte before start: the assumed quote state is the one after it
+          skipping = b != '\n' || inQuotes;
+        } else if (b == '\n' && !inQuotes) {
+          if (skipping) {
+            skipping = false;
+          } else {
+            endRecord();
+          }
+          if (position + 1 >= end) {
+            if (position + 1 == end) {
+              endInQuotes = false;
+            }
+            done = true; // the next record belongs to the next range
+            return;
+          }
+        } else if (!skipping) {
+          started = true;
+          if (b == '"') {
+            if (!inQuotes && previous == '"' && field == column) {
+              append(b); // doubled quote
+            }
+            inQuotes = !inQuotes;
+          } else if (b == delimiter && !inQuotes) {
+            field++;
+          } else if (field == column) {
+            append(b);
+          }
+        } else if (b == '"') {
+          inQuotes = !inQuotes;
+        }
+        previous = b;
+      }
+    }
+
+    /** Ends the file, if it does not end with a newline. */
+    void finish() {
+      if (!done) {
+        if (!skipping && started) {
+          endRecord();
+        }
+        done = true;
+      }
+    }
+
+    private void append(byte b) {
+      if (length == value.length) {
+        value = Arrays.copyOf(value, length * 2);
+      }
+      value[length++] = b;
+    }
+
+    private void endRecord() {
+      if (started && field >= column) {
+        int n = field == column && length > 0 && value[length - 1] == '\r' ? length - 1 : length;
+        records++;
+        counts.merge(new String(value, 0, n, StandardCharsets.UTF_8), 1, Integer::sum);
+      }
+      started = false;
+      field = 0;
+      length = 0;
+    }
+  }
+
+  /** Parses the byte range [start, end) of the file under both start states. */
+  private class FieldWorker extends RangeWorker {
+    private final Parser[] parsers; // by start state: outside, inside quotes
+
+    FieldWorker(long start, long end, RunStats stats) {
+      super(start, end, stats);
+      this.parsers = start == 0 ? new Parser[] { new Parser(start, end, false) }
+          : new Parser[] { new Parser(start, end, false), new Parser(start, end, true) };
+    }
+
+    @Override
+    void work() throws IOException {
+      // from the byte before start, in case it ends the previous record, and on
+      // past end until every interpretation has finished its last record
+      long position = start == 0 ? 0 : start - 1;
+      try (InputStream in = FileUtils.getRange(file, position, file.length())) {
+        byte[] buf = new byte[BUFFER_SIZE];
+        boolean done = false;
+        int n;
+        while (!done && (n = in.read(buf)) > 0) {
+          done = true;
+          for (Parser parser : parsers) {
+            parser.parse(buf, 0, n, position);
+            done &= parser.done;
+          }
+          position += n;
+        }
+        for (Parser parser : parsers) {
+          parser.finish();
+        }
+      }
+    }
+
+    Parser resolve(boolean inQuotes) {
+      Parser parser = parsers[inQuotes ? 1 : 0];
+      workerStats.words = parser.records;
+      return parser;
+    }
+  }
+
+  /**
+   * Counts the column over each range [parts[i], parts[i+1]) of the file in its
+   * own thread, parts being any cuts such as FileUtils.split gives.
+   *
+   * @return the number of records counted
+   * @throws IOException if reading fails
+   */
+  long count(long[] parts, Map<String, Integer> map, RunStats stats) throws IOException {
+    List<FieldWorker> workers = RangeWorker.runAll(parts, (start, end) -> new FieldWorker(start, end, stats));
+
+    // pick each range's interpretation from the state the previous one ends in
+    long time = System.nanoTime();
+    long totalRecords = 0;
+    boolean inQuotes = false;
+    for (FieldWorker worker : workers) {
+      Parser parser = worker.resolve(inQuotes);
+      totalRecords += parser.records;
+      WordFrequency.mergeInto(map, parser.counts);
+      inQuotes = parser.endInQuotes;
+    }
+    stats.phase("merge", System.nanoTime() - time);
+    return totalRecords;
+  }
+}
@@ -15,6 +15,20 @@ import java.nio.file.Paths;
  */
 class FileUtils {
 
+  /** When set, range readers report to it (see Progress). */
+  private static volatile Progress progress;
+
+  /** Installs the progress fed by the range readers, or removes it (null). */
+  static void setProgress(Progress p) {
+    progress = p;
+  }
+
+  /** Wraps a stream of the input so that it reports to the current progress. */
+  static InputStream tracked(InputStream in) {
+    Progress p = progress;
+    return p == null ? in : p.wrap(in);
+  }
+
   /**
    * Partitions the file into approximately equal byte ranges, adjusted to word
   * boundaries.
@@ -34,19 +48,8 @@ class FileUtils {
       offsets[0] = 0;
       for (int i = 1; i < numParts; i++) {
         long approx = partSize * i;
-        raf.seek(approx);
-
-        // Skip forward to the next token boundary (whitespace)
-        while (raf.getFilePointer() < size) {
-          int c = raf.read();
-          if (c == -1)
-            break;
-          if (Character.isWhitespace(c)) {
-            offsets[i] = raf.getFilePointer();
-            break;
-          }
-        }
-        if (offsets[i] == 0) {
+        offsets[i] = nextBoundary(raf, approx, size);
+        if (offsets[i] < 0) {
           offsets[i] = approx; // fallback if no boundary found
         }
       }
@@ -57,6 +60,58 @@ class FileUtils {
     return offsets;
   }
 
+  /**
+   * Skips forward from approx to the next token boundary, i.e. just past the
+   * first whitespace byte. Only ASCII bytes are whitespace, and they never occur
+   * inside a multi-byte UTF-8 sequence, so the boundary is also a character
+   * boundary.
+   *
+   * @param raf    the file, its position is moved
+   * @param approx the offset to start looking from
+   * @param end    the offset at which to give up (exclusive)
+   * @return the offset following the first whitespace byte in [approx, end), or
+   *         -1 if there is none
+   * @throws IOException if file access fails
+   */
+  static long nextBoundary(RandomAccessFile raf, long approx, long end) throws IOException {
+    raf.seek(approx);
+    while (raf.getFilePointer() < end) {
+      int c = raf.read();
+      if (c == -1)
+        break;
+      if (Character.isWhitespace(c)) {
+        return raf.getFilePointer();
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Partitions the file into approximately equal byte ranges, adjusted to line
+   * boundaries (just past a '\n'). Ranges may be empty when lines are longer
+   * than a range.
+   *
+   * @return array of offsets [0, p1, p2, ..., size]
+   * @throws IOException if file access fails
+   */
+  public static long[] partitionLines(File f, int numParts) throws IOException {
+    long size = Files.size(Paths.get(f.getPath()));
+    long[] offsets = new long[numParts + 1];
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+      for (int i = 1; i < numParts; i++) {
+        long approx = Math.max(size * i / numParts, offsets[i - 1]);
+        raf.seek(approx);
+        int c;
+        do {
+          c = raf.read();
+        } while (c != -1 && c != '\n');
+        offsets[i] = raf.getFilePointer();
+      }
+      offsets[numParts] = size;
+    }
+    return offsets;
+  }
+
   /**
    * Returns an InputStream that reads only the portion of the file from start
    * (inclusive) to end (exclusive).
@@ -80,7 +135,44 @@ class FileUtils {
 
     // Limit the readable bytes to (end - start)
     long limit = end - start;
-    return new BufferedInputStream(new LimitedInputStream(channelStream, raf, limit));
+    return tracked(new BufferedInputStream(new LimitedInputStream(channelStream, raf, limit)));
+  }
+
+  /**
+   * Splits a file of the given size into numParts ranges of equal size, with no
+   * I/O; the cuts may fall inside tokens, see getAlignedRange.
+   *
+   * @return array of offsets [0, p1, p2, ..., size]
+   */
+  public static long[] split(long size, int numParts) {
+    long[] offsets = new long[numParts + 1];
+    for (int i = 0; i <= numParts; i++) {
+      offsets[i] = size * i / numParts;
+    }
+    return offsets;
+  }
+
+  /**
+   * Returns an InputStream that reads the tokens starting in the portion of the
+   * file from start (inclusive) to end (exclusive), wherever start and end fall
+   * (see AlignedInputStream).
+   *
+   * @param f     the file to read from
+   * @param start starting byte offset (inclusive)
+   * @param end   ending byte offset (exclusive)
+   * @return an InputStream reading the tokens of the range
+   * @throws IOException if the file cannot be opened or seek fails
+   */
+  public static InputStream getAlignedRange(File f, long start, long end) throws IOException {
+    if (start < 0 || end < start || end > Files.size(Paths.get(f.getPath()))) {
+      throw new IllegalArgumentException("Invalid range: start=" + start + ", end=" + end);
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    raf.seek(start == 0 ? 0 : start - 1); // to look at the byte before start
+
+    InputStream channelStream = new BufferedInputStream(Channels.newInputStream(raf.getChannel()));
+    return tracked(new BufferedInputStream(new AlignedInputStream(channelStream, raf, start, end)));
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,346 @@
+package pc;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index of a text file: for each word, the byte offsets of its
+ * occurrences (built in "index" mode).
+ *
+ * Each partition of the file is indexed by its own IndexWorker, which appends
+ * the offsets of each word to a Postings list, delta-encoded as varints on the
+ * fly. Since partitions are in file order, the lists of a word are then
+ * concatenated partition after partition without any sort: only the first
+ * delta of each list is re-encoded, relative to the last offset of the
+ * previous one.
+ *
+ * File layout, all big-endian, meant to be memory-mapped (see Reader):
+ * <ul>
+ * <li>header: magic "WFX1", number of words n (int), total words (long);</li>
+ * <li>directory: n + 1 entries of 16 bytes, in increasing UTF-8 byte order of
+ * the words: key offset (int, in the key area), number of occurrences (int),
+ * postings offset (long, in the file); the last entry only marks the end of
+ * the keys and postings;</li>
+ * <li>keys: the UTF-8 bytes of the words, back to back;</li>
+ * <li>postings: for each word, its offsets as varint deltas, the first one
+ * relative to 0.</li>
+ * </ul>
+ */
+class InvertedIndex {
+
+  private static final int MAGIC = 0x57465831; // "WFX1"
+  private static final int HEADER_BYTES = 16;
+  private static final int ENTRY_BYTES = 16;
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private InvertedIndex() {
+  }
+
+  /** The offsets of one word in one partition, delta and varint encoded. */
+  static class Postings {
+    int count;
+    long first;
+    long last;
+    byte[] data = new byte[4];
+    int length;
+
+    /** Appends an offset, greater than the previous one. */
+    void add(long offset) {
+      if (count == 0) {
+        first = offset;
+      } else {
+        if (data.length - length < 10) {
+          data = Arrays.copyOf(data, 2 * data.length + 10);
+        }
+        length = writeVarint(data, length, offset - last);
+      }
+      last = offset;
+      count++;
+    }
+  }
+
+  /**
+   * Indexes the byte range [start, end) of a file: tokens are separated by
+   * whitespace bytes, decoded as UTF-8 and cleaned by WordFrequency.cleanWord as
+   * in PipeCounter, and the offset of each word is that of its token.
+   */
+  private static class IndexWorker extends RangeWorker {
+    private final File file;
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    IndexWorker(File file, long start, long end, RunStats stats) {
+      super(start, end, stats);
+      this.file = file;
+    }
+
+    @Override
+    void work() throws IOException {
+      try (InputStream in = FileUtils.getRange(file, start, end)) {
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] token = new byte[64];
+        int tokenLength = 0;
+        long tokenStart = 0;
+        long position = start;
+        int n;
+        while ((n = in.read(block)) > 0) {
+          for (int i = 0; i < n; i++, position++) {
+            byte b = block[i];
+            if (Character.isWhitespace(b & 0xFF)) {
+              if (tokenLength > 0) {
+                addToken(token, tokenLength, tokenStart);
+                tokenLength = 0;
+              }
+            } else {
+              if (tokenLength == 0) {
+                tokenStart = position;
+              } else if (tokenLength == token.length) {
+                token = Arrays.copyOf(token, 2 * tokenLength);
+              }
+              token[tokenLength++] = b;
+            }
+          }
+        }
+        if (tokenLength > 0) {
+          addToken(token, tokenLength, tokenStart);
+        }
+      }
+    }
+
+    private void addToken(byte[] token, int length, long offset) {
+      String word = WordFrequency.cleanWord(new String(token, 0, length, StandardCharsets.UTF_8));
+      if (!word.isEmpty()) {
+        totalWords++;
+        postings.computeIfAbsent(word, w -> new Postings()).add(offset);
+      }
+    }
+  }
+
+  /**
+   * Indexes each range [parts[i], parts[i+1]) of the file in its own thread,
+   * then writes the index.
+   *
+   * @param counts receives the number of occurrences of each word
+   * @return the number of words indexed
+   * @throws IOException if reading the file or writing the index fails
+   */
+  static long build(File file, long[] parts, File out, Map<String, Integer> counts, RunStats stats)
+      throws IOException {
+    List<IndexWorker> workers = RangeWorker.runAll(parts, (start, end) -> new IndexWorker(file, start, end, stats));
+    long totalWords = 0;
+    for (IndexWorker worker : workers) {
+      totalWords += worker.totalWords;
+    }
+
+    long time = System.nanoTime();
+    // all words, in UTF-8 byte order
+    Map<String, byte[]> keys = new HashMap<>();
+    for (IndexWorker worker : workers) {
+      for (String word : worker.postings.keySet()) {
+        keys.computeIfAbsent(word, w -> w.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    List<String> words = new ArrayList<>(keys.keySet());
+    words.sort((w1, w2) -> Arrays.compareUnsigned(keys.get(w1), keys.get(w2)));
+    stats.phase("sort", System.nanoTime() - time);
+
+    time = System.nanoTime();
+    int n = words.size();
+    long keysStart = HEADER_BYTES + (long) (n + 1) * ENTRY_BYTES;
+    long keysLength = 0;
+    for (String word : words) {
+      keysLength += keys.get(word).length;
+    }
+    try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)))) {
+      dos.writeInt(MAGIC);
+      dos.writeInt(n);
+      dos.writeLong(totalWords);
+
+      // directory: the size of each list is known before writing it
+      byte[] scratch = new byte[10];
+      int keyOffset = 0;
+      long postingsOffset = keysStart + keysLength;
+      for (String word : words) {
+        int count = 0;
+        long previous = 0;
+        long bytes = 0;
+        for (IndexWorker worker : workers) {
+          Postings p = worker.postings.get(word);
+          if (p != null) {
+            bytes += writeVarint(scratch, 0, p.first - previous) + p.length;
+            previous = p.last;
+            count += p.count;
+          }
+        }
+        dos.writeInt(keyOffset);
+        dos.writeInt(count);
+        dos.writeLong(postingsOffset);
+        keyOffset += keys.get(word).length;
+        postingsOffset += bytes;
+        counts.put(word, count);
+      }
+      dos.writeInt(keyOffset);
+      dos.writeInt(0);
+      dos.writeLong(postingsOffset);
+
+      for (String word : words) {
+        dos.write(keys.get(word));
+      }
+
+      // postings, concatenated in partition order
+      for (String word : words) {
+        long previous = 0;
+        for (IndexWorker worker : workers) {
+          Postings p = worker.postings.get(word);
+          if (p != null) {
+            dos.write(scratch, 0, writeVarint(scratch, 0, p.first - previous));
+            dos.write(p.data, 0, p.length);
+            previous = p.last;
+          }
+        }
+      }
+    }
+    stats.phase("write", System.nanoTime() - time);
+    return totalWords;
+  }
+
+  /** Writes value at buf[pos], 7 bits per byte; returns the position after it. */
+  private static int writeVarint(byte[] buf, int pos, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) value;
+    return pos;
+  }
+
+  /**
+   * Read access to an index file, memory-mapped: a lookup is a binary search
+   * in the directory, then a decoding of the word's postings only. The file
+   * must be smaller than 2 GB.
+   */
+  static class Reader implements Closeable {
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final long totalWords;
+    private final int keysStart;
+
+    Reader(File file) throws IOException {
+      raf = new RandomAccessFile(file, "r");
+      try {
+        if (raf.length() > Integer.MAX_VALUE) {
+          throw new IOException("Index too large to be mapped: " + file);
+        }
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        if (buffer.getInt(0) != MAGIC) {
+          throw new IOException("Not an index file: " + file);
+        }
+        size = buffer.getInt(4);
+        totalWords = buffer.getLong(8);
+        keysStart = HEADER_BYTES + (size + 1) * ENTRY_BYTES;
+      } catch (IOException e) {
+        raf.close();
+        throw e;
+      }
+    }
+
+    /** Number of distinct words. */
+    int size() {
+      return size;
+    }
+
+    long getTotalWords() {
+      return totalWords;
+    }
+
+    private int entry(int i) {
+      return HEADER_BYTES + i * ENTRY_BYTES;
+    }
+
+    private int compareKey(int i, byte[] key) {
+      int from = keysStart + buffer.getInt(entry(i));
+      int to = keysStart + buffer.getInt(entry(i + 1));
+      byte[] k = new byte[to - from];
+      buffer.get(from, k);
+      return Arrays.compareUnsigned(k, key);
+    }
+
+    /** The byte offsets of word in the indexed file, in increasing order. */
+    long[] lookup(String word) {
+      byte[] key = word.getBytes(StandardCharsets.UTF_8);
+      int lo = 0;
+      int hi = size - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int cmp = compareKey(mid, key);
+        if (cmp < 0) {
+          lo = mid + 1;
+        } else if (cmp > 0) {
+          hi = mid - 1;
+        } else {
+          return postings(mid);
+        }
+      }
+      return new long[0];
+    }
+
+    private long[] postings(int i) {
+      long[] offsets = new long[buffer.getInt(entry(i) + 4)];
+      int pos = (int) buffer.getLong(entry(i) + 8);
+      long offset = 0;
+      for (int j = 0; j < offsets.length; j++) {
+        long delta = 0;
+        for (int shift = 0;; shift += 7) {
+          byte b = buffer.get(pos++);
+          delta |= (long) (b & 0x7F) << shift;
+          if (b >= 0) {
+            break;
+          }
+        }
+        offset += delta;
+        offsets[j] = offset;
+      }
+      return offsets;
+    }
+
+    @Override
+    public void close() throws IOException {
+      raf.close();
+    }
+  }
+
+  /** Query tool: java pc.InvertedIndex index.wfx word... */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: java pc.InvertedIndex index.wfx word...");
+      System.exit(1);
+    }
+    try (Reader reader = new Reader(new File(args[0]))) {
+      for (int i = 1; i < args.length; i++) {
+        long[] offsets = reader.lookup(args[i]);
+        StringBuilder sb = new StringBuilder(args[i] + ": " + offsets.length);
+        for (int j = 0; j < offsets.length && j < 10; j++) {
+          sb.append(j == 0 ? " at " : ", ").append(offsets[j]);
+        }
+        if (offsets.length > 10) {
+          sb.append(", ...");
+        }
+        System.out.println(sb);
+      }
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * Multi-process word count (used in "multiproc" mode).
+ *
+ * The coordinator partitions the file and launches one worker JVM per range;
+ * each worker counts its range and writes a sorted {@link TableFile} to a
+ * temporary file, then exits. Workers thus have their own small heap and GC.
+ * The coordinator retries a failed worker on its range only, up to MAX_RETRIES
+ * times, then merges the tables in one streaming pass.
+ *
+ * The worker side is the main method of this class:
+ * java pc.MultiProcess file start end output
+ */
+class MultiProcess {
+
+  static final int MAX_RETRIES = 2;
+
+  private final File file;
+  private final int numWorkers;
+  private final RunStats stats;
+
+  /** A worker JVM, and the range and output file it was given. */
+  private static class WorkerProcess {
+    final long start;
+    final long end;
+    final Path output;
+    final RunStats.WorkerStats workerStats;
+    Process process;
+    long startTime;
+    int attempts;
+
+    WorkerProcess(long start, long end, Path output, RunStats.WorkerStats workerStats) {
+      this.start = start;
+      this.end = end;
+      this.output = output;
+      this.workerStats = workerStats;
+    }
+  }
+
+  public MultiProcess(File file, int numWorkers, RunStats stats) {
+    this.file = file;
+    this.numWorkers = numWorkers;
+    this.stats = stats;
+  }
+
+  /**
+   * Counts the file with worker processes.
+   *
+   * @param map the map to count into
+   * @return the number of words counted
+   * @throws IOException if a worker still fails after MAX_RETRIES retries
+   */
+  public long count(Map<String, Integer> map) throws IOException {
+    long time = System.nanoTime();
+    long[] parts = FileUtils.partition(file, numWorkers);
+    stats.phase("partition", System.nanoTime() - time);
+
+    List<WorkerProcess> workers = new ArrayList<>();
+    try {
+      time = System.nanoTime();
+      for (int i = 0; i < numWorkers; i++) {
+        if (parts[i] == parts[i + 1]) {
+          continue; // fewer boundaries than workers, nothing to count
+        }
+        Path output = Files.createTempFile("wordfrequency-part" + i + "-", ".bin");
+        WorkerProcess w = new WorkerProcess(parts[i], parts[i + 1], output, stats.newWorker(parts[i], parts[i + 1]));
+        workers.add(w);
+        launch(w);
+      }
+      for (WorkerProcess w : workers) {
+        while (waitFor(w) != 0) {
+          if (w.attempts > MAX_RETRIES) {
+            throw new IOException("Worker on range [" + w.start + ", " + w.end + ") failed " + w.attempts + " times");
+          }
+          System.err.println("Worker on range [" + w.start + ", " + w.end + ") failed, retrying");
+          launch(w);
+        }
+        try (TableFile.Reader r = new TableFile.Reader(w.output)) {
+          w.workerStats.words = r.getTotalWords();
+        }
+      }
+      stats.phase("count", System.nanoTime() - time);
+
+      time = System.nanoTime();
+      List<Path> outputs = new ArrayList<>();
+      for (WorkerProcess w : workers) {
+        outputs.add(w.output);
+      }
+      long totalWords = TableFile.merge(outputs, map);
+      stats.phase("merge", System.nanoTime() - time);
+      return totalWords;
+    } finally {
+      for (WorkerProcess w : workers) {
+        if (w.process != null) {
+          w.process.destroy();
+        }
+        Files.deleteIfExists(w.output);
+      }
+    }
+  }
+
+  private void launch(WorkerProcess w) throws IOException {
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        MultiProcess.class.getName(), file.getPath(), Long.toString(w.start), Long.toString(w.end),
+        w.output.toString());
+    pb.redirectOutput(Redirect.DISCARD);
+    pb.redirectError(Redirect.INHERIT);
+    w.attempts++;
+    w.startTime = System.nanoTime();
+    w.process = pb.start();
+  }
+
+  private int waitFor(WorkerProcess w) throws IOException {
+    try {
+      int code = w.process.waitFor();
+      w.workerStats.wallNanos = System.nanoTime() - w.startTime;
+      return code;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for workers", e);
+    }
+  }
+
+  /** Worker entry point: counts a range of a file into a table file. */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 4) {
+      System.err.println("Usage: java pc.MultiProcess file start end output");
+      System.exit(1);
+    }
+    File file = new File(args[0]);
+    long start = Long.parseLong(args[1]);
+    long end = Long.parseLong(args[2]);
+    Path output = Paths.get(args[3]);
+
+    RunStats stats = new RunStats(false);
+    Map<String, Integer> map = new HashMap<>();
+    long totalWords;
+    try (Scanner scanner = new Scanner(FileUtils.getRange(file, start, end))) {
+      totalWords = WordFrequency.countWords(scanner, map, WordFrequency.COMPUTE, stats, stats.newWorker(start, end));
+    }
+    TableFile.write(output, totalWords, map);
+  }
+}
@@ -0,0 +1,363 @@
+package pc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * A word count table stored outside of the Java heap (used in "offheap" mode).
+ *
+ * Keys, hashes and counts live in direct ByteBuffers: an open addressing table
+ * of 16 byte slots (hash, count, key reference), split in pages, and an append
+ * only arena of key bytes, split in chunks. The heap only holds the page and
+ * chunk handles, so the GC has nothing to trace however many words are
+ * counted. The table doubles when it is 3/4 full, rehashing from the stored
+ * hashes without touching the keys.
+ *
+ * Java 17 has no stable API to allocate and free native memory (the Foreign
+ * Memory API is incubating), hence direct buffers. They count against
+ * -XX:MaxDirectMemorySize (by default, the maximum heap size): past it,
+ * allocateDirect fails with an OutOfMemoryError. Their native memory is freed
+ * explicitly, by release() and when the table grows, through the cleaner of
+ * each buffer (sun.misc.Unsafe.invokeCleaner, from the jdk.unsupported
+ * module); where it is not available, it is left to the GC, which frees it
+ * only once the buffers are collected.
+ *
+ * It implements Map so that it can be used by CounterWorker and mergeInto, but
+ * entries cannot be removed. Like HashMap, it is not thread-safe.
+ */
+class OffHeapMap extends AbstractMap<String, Integer> {
+
+  private static final int SLOT_BYTES = 16; // int hash, int count, long keyRef
+  private static final int PAGE_SHIFT = 16; // 64k slots = 1 MB per page
+  private static final int PAGE_SLOTS = 1 << PAGE_SHIFT;
+  private static final int CHUNK_BYTES = 1 << 24; // 16 MB of keys per chunk
+  private static final int MAX_KEY_BYTES = 0xFFFF;
+
+  /** Unsafe.invokeCleaner(ByteBuffer), or null if not accessible. */
+  private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+  private ByteBuffer[] pages;
+  private long capacity;
+  private long mask;
+  private int size;
+
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  private ByteBuffer chunk;
+  private long keyBytes;
+
+  public OffHeapMap() {
+    allocateTable(PAGE_SLOTS);
+    chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+    chunks.add(chunk);
+  }
+
+  private void allocateTable(long slots) {
+    capacity = slots;
+    mask = slots - 1;
+    pages = new ByteBuffer[(int) (slots >> PAGE_SHIFT)];
+    for (int i = 0; i < pages.length; i++) {
+      pages[i] = ByteBuffer.allocateDirect(PAGE_SLOTS * SLOT_BYTES);
+    }
+  }
+
+  // Slot accessors: slot i is in page i >> PAGE_SHIFT
+
+  private int hashAt(long slot) {
+    return pages[(int) (slot >> PAGE_SHIFT)].getInt((int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES);
+  }
+
+  private int countAt(long slot) {
+    return pages[(int) (slot >> PAGE_SHIFT)].getInt((int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES + 4);
+  }
+
+  private long keyAt(long slot) {
+    return pages[(int) (slot >> PAGE_SHIFT)].getLong((int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES + 8);
+  }
+
+  private void setSlot(long slot, int hash, int count, long keyRef) {
+    ByteBuffer page = pages[(int) (slot >> PAGE_SHIFT)];
+    int off = (int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES;
+    page.putInt(off, hash);
+    page.putInt(off + 4, count);
+    page.putLong(off + 8, keyRef);
+  }
+
+  private void setCount(long slot, int count) {
+    pages[(int) (slot >> PAGE_SHIFT)].putInt((int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES + 4, count);
+  }
+
+  /** FNV-1a, never 0 since 0 marks an empty slot. */
+  private static int hash(byte[] key) {
+    int h = 0x811C9DC5;
+    for (byte b : key) {
+      h = (h ^ (b & 0xFF)) * 0x01000193;
+    }
+    h ^= h >>> 16;
+    return h == 0 ? 1 : h;
+  }
+
+  /** The slot holding key, or -(slot + 1) for the empty slot where it belongs. */
+  private long find(byte[] key, int hash) {
+    long slot = (hash & 0xFFFFFFFFL) & mask;
+    while (true) {
+      int h = hashAt(slot);
+      if (h == 0) {
+        return -(slot + 1);
+      }
+      if (h == hash && keyEquals(keyAt(slot), key)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  // Key arena: a key is stored as a 2 byte length followed by its bytes, a
+  // reference is (chunk index * CHUNK_BYTES + offset)
+
+  private boolean keyEquals(long keyRef, byte[] key) {
+    ByteBuffer c = chunks.get((int) (keyRef / CHUNK_BYTES));
+    int off = (int) (keyRef % CHUNK_BYTES);
+    if ((c.getShort(off) & 0xFFFF) != key.length) {
+      return false;
+    }
+    for (int i = 0; i < key.length; i++) {
+      if (c.get(off + 2 + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String keyString(long keyRef) {
+    ByteBuffer c = chunks.get((int) (keyRef / CHUNK_BYTES));
+    int off = (int) (keyRef % CHUNK_BYTES);
+    byte[] key = new byte[c.getShort(off) & 0xFFFF];
+    for (int i = 0; i < key.length; i++) {
+      key[i] = c.get(off + 2 + i);
+    }
+    return new String(key, StandardCharsets.UTF_8);
+  }
+
+  private long storeKey(byte[] key) {
+    if (chunk.remaining() < 2 + key.length) {
+      chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+      chunks.add(chunk);
+    }
+    long keyRef = (long) (chunks.size() - 1) * CHUNK_BYTES + chunk.position();
+    chunk.putShort((short) key.length);
+    chunk.put(key);
+    keyBytes += 2 + key.length;
+    return keyRef;
+  }
+
+  private static byte[] bytes(Object key) {
+    byte[] bytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_KEY_BYTES) {
+      throw new IllegalArgumentException("Key longer than " + MAX_KEY_BYTES + " bytes");
+    }
+    return bytes;
+  }
+
+  /** Inserts a new key in the empty slot returned by find. */
+  private void insert(long emptySlot, byte[] key, int hash, int count) {
+    setSlot(emptySlot, hash, count, storeKey(key));
+    size++;
+    if (size > capacity / 4 * 3) {
+      grow();
+    }
+  }
+
+  /** Doubles the table, moving slots according to their stored hash. */
+  private void grow() {
+    ByteBuffer[] old = pages;
+    long oldCapacity = capacity;
+    allocateTable(capacity * 2);
+    for (long i = 0; i < oldCapacity; i++) {
+      ByteBuffer page = old[(int) (i >> PAGE_SHIFT)];
+      int off = (int) (i & (PAGE_SLOTS - 1)) * SLOT_BYTES;
+      int h = page.getInt(off);
+      if (h != 0) {
+        long slot = (h & 0xFFFFFFFFL) & mask;
+        while (hashAt(slot) != 0) {
+          slot = (slot + 1) & mask;
+        }
+        setSlot(slot, h, page.getInt(off + 4), page.getLong(off + 8));
+      }
+    }
+    for (ByteBuffer page : old) {
+      free(page);
+    }
+  }
+
+  /** Frees the native memory of a direct buffer now, if possible. */
+  private static void free(ByteBuffer buffer) {
+    if (INVOKE_CLEANER != null) {
+      try {
+        INVOKE_CLEANER.invokeExact(buffer);
+      } catch (Throwable t) {
+        throw new IllegalStateException("Cannot free a direct buffer", t);
+      }
+    }
+  }
+
+  private static MethodHandle findInvokeCleaner() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+          .bindTo(field.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null; // left to the GC
+    }
+  }
+
+  @Override
+  public Integer get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    byte[] k = bytes(key);
+    long slot = find(k, hash(k));
+    return slot < 0 ? null : countAt(slot);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public Integer put(String key, Integer value) {
+    byte[] k = bytes(key);
+    int h = hash(k);
+    long slot = find(k, h);
+    if (slot >= 0) {
+      int old = countAt(slot);
+      setCount(slot, value);
+      return old;
+    }
+    insert(-slot - 1, k, h, value);
+    return null;
+  }
+
+  @Override
+  public Integer merge(String key, Integer value, BiFunction<? super Integer, ? super Integer, ? extends Integer> fn) {
+    byte[] k = bytes(key);
+    int h = hash(k);
+    long slot = find(k, h);
+    if (slot >= 0) {
+      int count = fn.apply(countAt(slot), value);
+      setCount(slot, count);
+      return count;
+    }
+    insert(-slot - 1, k, h, value);
+    return value;
+  }
+
+  @Override
+  public Integer compute(String key, BiFunction<? super String, ? super Integer, ? extends Integer> fn) {
+    byte[] k = bytes(key);
+    int h = hash(k);
+    long slot = find(k, h);
+    Integer count = fn.apply(key, slot >= 0 ? countAt(slot) : null);
+    if (count == null) {
+      throw new UnsupportedOperationException("Entries cannot be removed");
+    }
+    if (slot >= 0) {
+      setCount(slot, count);
+    } else {
+      insert(-slot - 1, k, h, count);
+    }
+    return count;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** Off-heap bytes in use: slot pages and key chunks. */
+  long offHeapBytes() {
+    return capacity * SLOT_BYTES + (long) chunks.size() * CHUNK_BYTES;
+  }
+
+  /** Bytes of keys actually stored in the arena, length prefixes included. */
+  long keyBytes() {
+    return keyBytes;
+  }
+
+  /**
+   * Frees the off-heap buffers (see free); the map must not be used
+   * afterwards.
+   */
+  void release() {
+    if (pages == null) {
+      return;
+    }
+    for (ByteBuffer page : pages) {
+      free(page);
+    }
+    for (ByteBuffer c : chunks) {
+      free(c);
+    }
+    pages = null;
+    chunks.clear();
+    chunk = null;
+    size = 0;
+  }
+
+  /** Entries are created on the fly while iterating, as immutable snapshots. */
+  @Override
+  public Set<Map.Entry<String, Integer>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Integer>>() {
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public Iterator<Map.Entry<String, Integer>> iterator() {
+        return new Iterator<Map.Entry<String, Integer>>() {
+          private long slot = advance(0);
+
+          private long advance(long from) {
+            while (from < capacity && hashAt(from) == 0) {
+              from++;
+            }
+            return from;
+          }
+
+          @Override
+          public boolean hasNext() {
+            return slot < capacity;
+          }
+
+          @Override
+          public Map.Entry<String, Integer> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Map.Entry<String, Integer> e = new SimpleImmutableEntry<>(keyString(keyAt(slot)), countAt(slot));
+            slot = advance(slot + 1);
+            return e;
+          }
+        };
+      }
+    };
+  }
+}
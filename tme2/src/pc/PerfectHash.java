@@ -0,0 +1,401 @@
+package pc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A frozen word count table indexed by a minimal perfect hash function
+ * (written with --mphf=file).
+ *
+ * The function is built BBHash style: at level i, each remaining key is hashed
+ * into a bit array of GAMMA times as many bits as keys; the keys alone in their
+ * bit are placed there, the colliding ones go on to level i + 1. The index of a
+ * key is the rank of its bit among all set bits, from 0 to n - 1 with no hole.
+ * Ranks are precomputed per 64 bit word, so a lookup tests one bit and reads
+ * one rank at the level where the key was placed (most keys are on level 0).
+ *
+ * The keys are stored back to back, in index order, in one byte blob with an
+ * int[] of offsets, to reject words outside of the vocabulary; the counts are
+ * in a parallel int[]. Everything lives in buffers, either on the heap after
+ * build or mapped from a file by open: the file is the concatenation of the
+ * buffers.
+ *
+ * Each level is built by numThreads threads: a first pass marks the bits hit
+ * once or more (compare-and-set on an AtomicLongArray), a second pass keeps the
+ * keys of the bits hit once.
+ *
+ * Keys sharing their 64 bit hash collide at every level. Should keys remain
+ * after MAX_LEVELS, the build starts over with another seed of the hash (the
+ * seed is stored with the table), up to MAX_SEEDS times.
+ */
+class PerfectHash {
+
+  private static final int MAGIC = 0x57464832; // "WFH2"
+  static final double GAMMA = 2.0;
+  private static final int MAX_LEVELS = 64;
+  private static final int MAX_SEEDS = 16;
+
+  private final int size;
+  private final long seed;
+  private final long[] levelStart; // in bits, levelStart[levels] is the total
+  private final LongBuffer bits;
+  private final IntBuffer ranks; // set bits before each word
+  private final IntBuffer keyOffsets;
+  private final IntBuffer counts;
+  private final ByteBuffer keys;
+
+  private PerfectHash(int size, long seed, long[] levelStart, LongBuffer bits, IntBuffer ranks,
+      IntBuffer keyOffsets, IntBuffer counts, ByteBuffer keys) {
+    this.size = size;
+    this.seed = seed;
+    this.levelStart = levelStart;
+    this.bits = bits;
+    this.ranks = ranks;
+    this.keyOffsets = keyOffsets;
+    this.counts = counts;
+    this.keys = keys;
+  }
+
+  /**
+   * 64 bit FNV-1a of the key, from an offset basis changed by the seed,
+   * finalized with the MurmurHash3 mix.
+   */
+  private static long hash(byte[] key, long seed) {
+    long h = 0xCBF29CE484222325L ^ mix(seed);
+    for (byte b : key) {
+      h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+    return mix(h);
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** Position of a key of hash h in a level of levelBits bits. */
+  private static long position(long h, int level, long levelBits) {
+    return Long.remainderUnsigned(mix(h + level * 0x9E3779B97F4A7C15L), levelBits);
+  }
+
+  /** A task over the index range [from, to). */
+  private interface RangeTask {
+    void run(int from, int to);
+  }
+
+  /**
+   * Runs task over [0, n) split in numThreads ranges, one thread each, then
+   * rethrows the first failure of a range once all threads are done.
+   */
+  private static void inParallel(int numThreads, int n, RangeTask task) {
+    List<Thread> threads = new ArrayList<>();
+    Throwable[] errors = new Throwable[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      int range = t;
+      int from = (int) ((long) n * t / numThreads);
+      int to = (int) ((long) n * (t + 1) / numThreads);
+      Thread thread = new Thread(() -> {
+        try {
+          task.run(from, to);
+        } catch (Throwable e) {
+          errors[range] = e;
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while building the perfect hash", e);
+      }
+    }
+    for (Throwable e : errors) {
+      if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      if (e instanceof Error) {
+        throw (Error) e;
+      }
+    }
+  }
+
+  /**
+   * Builds the table of a finished count map.
+   *
+   * @param map        the counts, not modified
+   * @param numThreads number of threads used for each pass
+   */
+  static PerfectHash build(Map<String, Integer> map, int numThreads) {
+    for (long seed = 0; seed < MAX_SEEDS; seed++) {
+      PerfectHash table = build(map, numThreads, seed);
+      if (table != null) {
+        return table;
+      }
+      System.err.println("Perfect hash: keys share their hash with seed " + seed + ", retrying");
+    }
+    throw new IllegalStateException("Could not build a perfect hash with " + MAX_SEEDS + " seeds");
+  }
+
+  /** The table built with a given seed, or null if some keys cannot be placed. */
+  private static PerfectHash build(Map<String, Integer> map, int numThreads, long seed) {
+    int n = map.size();
+    String[] words = map.keySet().toArray(new String[0]);
+    byte[][] bytes = new byte[n][];
+    long[] hashes = new long[n];
+    inParallel(numThreads, n, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        bytes[i] = words[i].getBytes(StandardCharsets.UTF_8);
+        hashes[i] = hash(bytes[i], seed);
+      }
+    });
+
+    // levels: keys still to place, as indices in words
+    List<long[]> levels = new ArrayList<>();
+    int[] remaining = new int[n];
+    for (int i = 0; i < n; i++) {
+      remaining[i] = i;
+    }
+    int left = n;
+    while (left > 0) {
+      int level = levels.size();
+      if (level == MAX_LEVELS) {
+        return null; // keys sharing their hash
+      }
+      long levelBits = Math.max(64, ((long) Math.ceil(left * GAMMA) + 63) & ~63L);
+      AtomicLongArray seen = new AtomicLongArray((int) (levelBits / 64));
+      AtomicLongArray collision = new AtomicLongArray((int) (levelBits / 64));
+      int[] keys = remaining;
+      int count = left;
+      inParallel(numThreads, count, (from, to) -> {
+        for (int i = from; i < to; i++) {
+          long p = position(hashes[keys[i]], level, levelBits);
+          int w = (int) (p >>> 6);
+          long mask = 1L << p;
+          long old;
+          do {
+            old = seen.get(w);
+          } while ((old & mask) == 0 && !seen.compareAndSet(w, old, old | mask));
+          if ((old & mask) != 0) {
+            long c;
+            do {
+              c = collision.get(w);
+            } while ((c & mask) == 0 && !collision.compareAndSet(w, c, c | mask));
+          }
+        }
+      });
+      long[] levelWords = new long[(int) (levelBits / 64)];
+      for (int w = 0; w < levelWords.length; w++) {
+        levelWords[w] = seen.get(w) & ~collision.get(w);
+      }
+      levels.add(levelWords);
+
+      boolean[] placed = new boolean[count];
+      inParallel(numThreads, count, (from, to) -> {
+        for (int i = from; i < to; i++) {
+          long p = position(hashes[keys[i]], level, levelBits);
+          placed[i] = (levelWords[(int) (p >>> 6)] & (1L << p)) != 0;
+        }
+      });
+      int[] next = new int[count];
+      int nextCount = 0;
+      for (int i = 0; i < count; i++) {
+        if (!placed[i]) {
+          next[nextCount++] = keys[i];
+        }
+      }
+      remaining = next;
+      left = nextCount;
+    }
+
+    // concatenate the levels and rank their words
+    long[] levelStart = new long[levels.size() + 1];
+    int totalWords = 0;
+    for (int l = 0; l < levels.size(); l++) {
+      levelStart[l] = 64L * totalWords;
+      totalWords += levels.get(l).length;
+    }
+    levelStart[levels.size()] = 64L * totalWords;
+    long[] bits = new long[totalWords];
+    int[] ranks = new int[totalWords];
+    int w = 0;
+    int rank = 0;
+    for (long[] level : levels) {
+      for (long word : level) {
+        bits[w] = word;
+        ranks[w++] = rank;
+        rank += Long.bitCount(word);
+      }
+    }
+    PerfectHash table = new PerfectHash(n, seed, levelStart, LongBuffer.wrap(bits), IntBuffer.wrap(ranks), null, null,
+        null);
+
+    // keys and counts in index order
+    int[] index = new int[n];
+    int[] lengths = new int[n + 1];
+    inParallel(numThreads, n, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        index[i] = table.indexOf(hashes[i]);
+        lengths[index[i]] = bytes[i].length;
+      }
+    });
+    int[] offsets = new int[n + 1];
+    for (int i = 0; i < n; i++) {
+      offsets[i + 1] = Math.addExact(offsets[i], lengths[i]);
+    }
+    int[] countArray = new int[n];
+    byte[] blob = new byte[offsets[n]];
+    inParallel(numThreads, n, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        countArray[index[i]] = map.get(words[i]);
+        System.arraycopy(bytes[i], 0, blob, offsets[index[i]], bytes[i].length);
+      }
+    });
+    return new PerfectHash(n, seed, levelStart, table.bits, table.ranks, IntBuffer.wrap(offsets),
+        IntBuffer.wrap(countArray), ByteBuffer.wrap(blob));
+  }
+
+  /** The index of a key of hash h if it was placed, or -1. */
+  private int indexOf(long h) {
+    for (int level = 0; level + 1 < levelStart.length; level++) {
+      long p = levelStart[level] + position(h, level, levelStart[level + 1] - levelStart[level]);
+      int w = (int) (p >>> 6);
+      long word = bits.get(w);
+      if ((word & (1L << p)) != 0) {
+        return ranks.get(w) + Long.bitCount(word & ((1L << p) - 1));
+      }
+    }
+    return -1;
+  }
+
+  /** Number of words. */
+  int size() {
+    return size;
+  }
+
+  /** The count of word, or 0 if it is not in the vocabulary. */
+  int get(String word) {
+    byte[] key = word.getBytes(StandardCharsets.UTF_8);
+    int i = indexOf(hash(key, seed));
+    if (i < 0) {
+      return 0;
+    }
+    int from = keyOffsets.get(i);
+    if (keyOffsets.get(i + 1) - from != key.length) {
+      return 0;
+    }
+    for (int j = 0; j < key.length; j++) {
+      if (keys.get(from + j) != key[j]) {
+        return 0;
+      }
+    }
+    return counts.get(i);
+  }
+
+  /** Bits per key of the hash function alone (bit arrays and ranks). */
+  double bitsPerKey() {
+    return size == 0 ? 0 : (64.0 + 32.0) * bits.limit() / size;
+  }
+
+  /**
+   * Writes the table: magic, size, seed, number of levels, the level starts (in
+   * bits), the number of bytes of keys, then the bit words, the ranks, the key
+   * offsets, the counts and the keys.
+   */
+  void write(File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(size);
+      out.writeLong(seed);
+      out.writeInt(levelStart.length - 1);
+      out.writeInt(keys.limit());
+      for (long start : levelStart) {
+        out.writeLong(start);
+      }
+      for (int i = 0; i < bits.limit(); i++) {
+        out.writeLong(bits.get(i));
+      }
+      for (int i = 0; i < ranks.limit(); i++) {
+        out.writeInt(ranks.get(i));
+      }
+      for (int i = 0; i <= size; i++) {
+        out.writeInt(keyOffsets.get(i));
+      }
+      for (int i = 0; i < size; i++) {
+        out.writeInt(counts.get(i));
+      }
+      for (int i = 0; i < keys.limit(); i++) {
+        out.write(keys.get(i));
+      }
+    }
+  }
+
+  /** Maps a table written by write; the file must be smaller than 2 GB. */
+  static PerfectHash open(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      if (raf.length() > Integer.MAX_VALUE) {
+        throw new IOException("Table too large to be mapped: " + file);
+      }
+      ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a perfect hash table: " + file);
+      }
+      int size = buffer.getInt();
+      long seed = buffer.getLong();
+      int levels = buffer.getInt();
+      int keyBytes = buffer.getInt();
+      long[] levelStart = new long[levels + 1];
+      for (int l = 0; l <= levels; l++) {
+        levelStart[l] = buffer.getLong();
+      }
+      int words = (int) (levelStart[levels] / 64);
+      LongBuffer bits = slice(buffer, 8L * words).asLongBuffer();
+      IntBuffer ranks = slice(buffer, 4L * words).asIntBuffer();
+      IntBuffer keyOffsets = slice(buffer, 4L * (size + 1)).asIntBuffer();
+      IntBuffer counts = slice(buffer, 4L * size).asIntBuffer();
+      ByteBuffer keys = slice(buffer, keyBytes);
+      return new PerfectHash(size, seed, levelStart, bits, ranks, keyOffsets, counts, keys);
+    }
+  }
+
+  /** The next length bytes of buffer, as a buffer of their own. */
+  private static ByteBuffer slice(ByteBuffer buffer, long length) throws IOException {
+    if (length > buffer.remaining()) {
+      throw new IOException("Truncated perfect hash table");
+    }
+    ByteBuffer slice = buffer.slice(buffer.position(), (int) length);
+    buffer.position(buffer.position() + (int) length);
+    return slice;
+  }
+
+  /** Lookup tool: java pc.PerfectHash table.wfh word... */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: java pc.PerfectHash table.wfh word...");
+      System.exit(1);
+    }
+    PerfectHash table = open(new File(args[0]));
+    for (int i = 1; i < args.length; i++) {
+      System.out.println(args[i] + ": " + table.get(args[i]));
+    }
+  }
+}
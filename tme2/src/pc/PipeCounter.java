@@ -0,0 +1,235 @@
+package pc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Parallel word count over a non seekable stream (used in "pipe" mode, e.g. on
+ * stdin).
+ *
+ * A single reader (the calling thread) cuts the stream into chunks of about
+ * CHUNK_SIZE bytes ending on whitespace: the partial token at the end of a
+ * chunk is carried over to the start of the next one. Chunks are handed
+ * through a bounded queue to N counting workers, each with its own map, merged
+ * at the end as in "shard" mode. Chunk buffers are recycled through a second
+ * queue, so memory stays bounded whatever the length of the stream.
+ */
+class PipeCounter {
+
+  static final int CHUNK_SIZE = 1 << 20;
+
+  /** A buffer holding length bytes of the stream, cut at a token boundary. */
+  private static class Chunk {
+    byte[] data;
+    int length;
+
+    Chunk(int capacity) {
+      data = new byte[capacity];
+    }
+  }
+
+  /** Marks the end of the stream in the queue of full chunks. */
+  private static final Chunk END = new Chunk(0);
+
+  private final InputStream in;
+  private final int numThreads;
+  private final RunStats stats;
+  private final BlockingQueue<Chunk> full;
+  private final BlockingQueue<Chunk> free;
+  /** Set by a failing worker, stops the reader. */
+  private volatile boolean failed;
+
+  /**
+   * Counts the chunks it takes from the full queue into a local map. Once it
+   * failed (with any Throwable, kept for count() to rethrow), it only recycles
+   * the chunks until END, so that the reader never waits for a free chunk.
+   */
+  private class ChunkWorker extends Thread {
+    private final Map<String, Integer> map = new HashMap<>();
+    private long totalWords;
+    private long bytes;
+    private long wallNanos;
+    private Throwable error;
+
+    @Override
+    public void run() {
+      long time = System.nanoTime();
+      try {
+        while (true) {
+          Chunk chunk = full.take();
+          if (chunk == END) {
+            break;
+          }
+          if (error == null) {
+            try {
+              totalWords += countWords(chunk.data, 0, chunk.length, map, WordFrequency.COMPUTE);
+              bytes += chunk.length;
+            } catch (Throwable t) {
+              error = t;
+              failed = true;
+            }
+          }
+          free.put(chunk);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      wallNanos = System.nanoTime() - time;
+    }
+  }
+
+  public PipeCounter(InputStream in, int numThreads, RunStats stats) {
+    this.in = in;
+    this.numThreads = numThreads;
+    this.stats = stats;
+    this.full = new ArrayBlockingQueue<>(2 * numThreads);
+    this.free = new ArrayBlockingQueue<>(2 * numThreads + 1);
+    for (int i = 0; i < 2 * numThreads + 1; i++) {
+      free.add(new Chunk(CHUNK_SIZE));
+    }
+  }
+
+  /**
+   * Reads the whole stream and counts its words into map.
+   *
+   * @param map the map to count into
+   * @return the number of words counted
+   * @throws IOException if reading fails, or if a worker failed
+   */
+  public long count(Map<String, Integer> map) throws IOException {
+    List<ChunkWorker> workers = new ArrayList<>();
+    for (int i = 0; i < numThreads; i++) {
+      ChunkWorker worker = new ChunkWorker();
+      workers.add(worker);
+      worker.start();
+    }
+
+    long time = System.nanoTime();
+    try {
+      try {
+        read();
+      } finally {
+        for (int i = 0; i < numThreads; i++) {
+          full.put(END);
+        }
+      }
+      stats.phase("read", System.nanoTime() - time);
+      for (ChunkWorker worker : workers) {
+        worker.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading the stream", e);
+    }
+    for (ChunkWorker worker : workers) {
+      if (worker.error instanceof Error) {
+        throw (Error) worker.error;
+      }
+      if (worker.error != null) {
+        throw new IOException("Chunk worker failed", worker.error);
+      }
+    }
+
+    time = System.nanoTime();
+    long totalWords = 0;
+    for (ChunkWorker worker : workers) {
+      RunStats.WorkerStats ws = stats.newWorker(0, worker.bytes);
+      ws.words = worker.totalWords;
+      ws.wallNanos = worker.wallNanos;
+      totalWords += worker.totalWords;
+      WordFrequency.mergeInto(map, worker.map);
+    }
+    stats.phase("merge", System.nanoTime() - time);
+    return totalWords;
+  }
+
+  /** Reader loop: fills free chunks and queues them for the workers. */
+  private void read() throws IOException, InterruptedException {
+    byte[] carry = new byte[CHUNK_SIZE];
+    int carryLength = 0;
+    boolean eof = false;
+    while (!eof && !failed) {
+      Chunk chunk = free.take();
+      if (chunk.data.length < carryLength + 1) {
+        chunk.data = new byte[Math.max(CHUNK_SIZE, 2 * carryLength)];
+      }
+      System.arraycopy(carry, 0, chunk.data, 0, carryLength);
+      int length = carryLength;
+
+      // fill the chunk, growing it if a single token does not fit
+      int cut = -1;
+      while (cut < 0 && !eof) {
+        int read = in.read(chunk.data, length, chunk.data.length - length);
+        if (read < 0) {
+          eof = true;
+        } else {
+          length += read;
+          if (length == chunk.data.length) {
+            cut = lastBoundary(chunk.data, length);
+            if (cut < 0) {
+              chunk.data = Arrays.copyOf(chunk.data, 2 * chunk.data.length);
+            }
+          }
+        }
+      }
+      if (eof) {
+        cut = length;
+      }
+
+      // carry the partial trailing token over to the next chunk
+      carryLength = length - cut;
+      if (carry.length < carryLength) {
+        carry = new byte[carryLength];
+      }
+      System.arraycopy(chunk.data, cut, carry, 0, carryLength);
+      chunk.length = cut;
+      full.put(chunk);
+    }
+  }
+
+  /** The offset just past the last whitespace byte of buf[0, length), or -1. */
+  private static int lastBoundary(byte[] buf, int length) {
+    for (int i = length - 1; i >= 0; i--) {
+      if (Character.isWhitespace(buf[i] & 0xFF)) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Counts the words of buf[from, to): tokens are separated by whitespace bytes,
+   * decoded as UTF-8 and cleaned by WordFrequency.cleanWord.
+   *
+   * @return the number of words counted
+   */
+  static long countWords(byte[] buf, int from, int to, Map<String, Integer> map, WordFrequency.WordCounter counter) {
+    long totalWords = 0;
+    int i = from;
+    while (i < to) {
+      while (i < to && Character.isWhitespace(buf[i] & 0xFF)) {
+        i++;
+      }
+      int start = i;
+      while (i < to && !Character.isWhitespace(buf[i] & 0xFF)) {
+        i++;
+      }
+      if (i > start) {
+        String word = WordFrequency.cleanWord(new String(buf, start, i - start, StandardCharsets.UTF_8));
+        if (!word.isEmpty()) {
+          totalWords++;
+          counter.add(map, word);
+        }
+      }
+    }
+    return totalWords;
+  }
+}
@@ -0,0 +1,175 @@
+package pc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of a run over a file, and its cancellation (used with --progress
+ * and --timeout).
+ *
+ * While installed (see FileUtils.setProgress), every range reader counts the
+ * bytes it delivers into a LongAdder, cheap to update from all the workers at
+ * once; a daemon thread prints the throughput and the estimated time left on
+ * stderr at a fixed interval. Once cancelled, by the timeout or by Ctrl-C,
+ * range readers report the end of their range at their next read: workers
+ * then finish as if their range were shorter, and the results printed are
+ * those of the bytes read so far.
+ */
+class Progress {
+
+  private final LongAdder bytes = new LongAdder();
+  private final long startNanos = System.nanoTime();
+  private final CountDownLatch finished = new CountDownLatch(1);
+  private volatile long total;
+  private volatile boolean cancelled;
+  private Thread reporter;
+
+  /** @param total the number of bytes to read, for the percentage and ETA */
+  Progress(long total) {
+    this.total = total;
+  }
+
+  /** Changes the number of bytes to read, once it is known. */
+  void setTotal(long total) {
+    this.total = total;
+  }
+
+  long getBytes() {
+    return bytes.sum();
+  }
+
+  long getTotal() {
+    return total;
+  }
+
+  void cancel() {
+    cancelled = true;
+  }
+
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  /** Counts the bytes read from in, and ends it once cancelled. */
+  InputStream wrap(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        if (cancelled) {
+          return -1;
+        }
+        int b = super.read();
+        if (b >= 0) {
+          bytes.increment();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (cancelled) {
+          return -1;
+        }
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          bytes.add(n);
+        }
+        return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        bytes.add(skipped);
+        return skipped;
+      }
+    };
+  }
+
+  /**
+   * Starts the reporter thread.
+   *
+   * @param intervalMs time between two reports, 0 for none
+   * @param timeoutMs  time after which the run is cancelled, 0 for none
+   */
+  void start(long intervalMs, long timeoutMs, PrintStream out) {
+    long tick = intervalMs > 0 ? intervalMs : timeoutMs;
+    reporter = new Thread(() -> {
+      try {
+        while (true) {
+          long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+          // once cancelled, only the reports are left to print, every tick
+          long wait = timeoutMs > 0 && !cancelled ? Math.min(tick, Math.max(1, timeoutMs - elapsedMs)) : tick;
+          Thread.sleep(wait);
+          if (timeoutMs > 0 && (System.nanoTime() - startNanos) / 1_000_000 >= timeoutMs && !cancelled) {
+            out.println("Timeout after " + timeoutMs + " ms, cancelling");
+            cancel();
+          }
+          if (intervalMs <= 0) {
+            if (cancelled) {
+              return;
+            }
+          } else {
+            out.println(report());
+          }
+        }
+      } catch (InterruptedException e) {
+        // stopped
+      }
+    }, "progress");
+    reporter.setDaemon(true);
+    reporter.start();
+  }
+
+  /**
+   * Cancels the run on Ctrl-C, then lets the calling (main) thread print the
+   * partial results, until finish(), its end, or 10 s, before the JVM exits.
+   */
+  void cancelOnShutdown() {
+    Thread main = Thread.currentThread();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      if (finished.getCount() == 0 || !main.isAlive()) {
+        return; // normal exit, or main died of an exception
+      }
+      cancel();
+      try {
+        for (int i = 0; i < 100 && main.isAlive(); i++) {
+          if (finished.await(100, TimeUnit.MILLISECONDS)) {
+            break;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "cancel"));
+  }
+
+  /** Stops the reporter thread, once the file is read. */
+  void stop() {
+    if (reporter != null) {
+      reporter.interrupt();
+    }
+  }
+
+  /** Signals that the results have been printed. */
+  void finish() {
+    finished.countDown();
+  }
+
+  /** Percentage, throughput and time left, from the bytes read so far. */
+  String report() {
+    long read = bytes.sum();
+    long size = Math.max(total, read);
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    double rate = seconds > 0 ? read / seconds : 0;
+    String eta = rate > 0 ? String.format(Locale.ROOT, "%.1f s", (size - read) / rate) : "?";
+    return String.format(Locale.ROOT, "Progress: %.1f%% (%.1f of %.1f MB), %.1f MB/s, ETA %s",
+        size > 0 ? 100.0 * read / size : 100.0, read / 1e6, size / 1e6, rate / 1e6, eta);
+  }
+}
@@ -0,0 +1,318 @@
+package pc;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * A word count table stored as a radix trie (used in "trie" mode).
+ *
+ * Each node holds the label of the edge leading to it, a count (0 when no word
+ * ends there) and its children sorted by first character. Words sharing a
+ * prefix share the nodes of that prefix, and a chain of single children is
+ * collapsed into one label. Iteration is in lexicographic (String.compareTo)
+ * order without any sort, and the words starting with a prefix are a single
+ * subtree (see prefixMap).
+ *
+ * It implements Map so that it can be used by CounterWorker and mergeInto;
+ * entries cannot be removed and counts must be positive. Like HashMap, it is
+ * not thread-safe.
+ */
+class RadixTrie extends AbstractMap<String, Integer> {
+
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  private static final class Node {
+    char[] label;
+    int count;
+    Node[] children = NO_CHILDREN;
+
+    Node(char[] label) {
+      this.label = label;
+    }
+  }
+
+  private final Node root = new Node(new char[0]);
+  private int size;
+  private int nodes = 1;
+
+  /** Index of the child of n starting with c, or -(insertion point + 1). */
+  private static int findChild(Node n, char c) {
+    int lo = 0;
+    int hi = n.children.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      char m = n.children[mid].label[0];
+      if (m < c) {
+        lo = mid + 1;
+      } else if (m > c) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(lo + 1);
+  }
+
+  /**
+   * The node at which key ends, or null if there is none and create is false.
+   * With create, missing nodes are added, splitting a label if key ends or
+   * diverges in its middle.
+   */
+  private Node locate(String key, boolean create) {
+    Node n = root;
+    int i = 0;
+    int len = key.length();
+    while (i < len) {
+      int ci = findChild(n, key.charAt(i));
+      if (ci < 0) {
+        if (!create) {
+          return null;
+        }
+        Node leaf = new Node(key.substring(i).toCharArray());
+        insertChild(n, -ci - 1, leaf);
+        return leaf;
+      }
+      Node child = n.children[ci];
+      char[] label = child.label;
+      int j = 1;
+      while (j < label.length && i + j < len && label[j] == key.charAt(i + j)) {
+        j++;
+      }
+      if (j < label.length) {
+        if (!create) {
+          return null;
+        }
+        // split the label: n -> mid (label[0, j)) -> child (label[j, ...))
+        Node mid = new Node(Arrays.copyOf(label, j));
+        child.label = Arrays.copyOfRange(label, j, label.length);
+        mid.children = new Node[] { child };
+        n.children[ci] = mid;
+        nodes++;
+        child = mid;
+      }
+      n = child;
+      i += j;
+    }
+    return n;
+  }
+
+  private void insertChild(Node n, int at, Node child) {
+    Node[] children = new Node[n.children.length + 1];
+    System.arraycopy(n.children, 0, children, 0, at);
+    children[at] = child;
+    System.arraycopy(n.children, at, children, at + 1, n.children.length - at);
+    n.children = children;
+    nodes++;
+  }
+
+  private Integer set(Node n, int count) {
+    if (count <= 0) {
+      throw new UnsupportedOperationException("Counts must be positive, entries cannot be removed");
+    }
+    int old = n.count;
+    if (old == 0) {
+      size++;
+    }
+    n.count = count;
+    return old == 0 ? null : old;
+  }
+
+  @Override
+  public Integer get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    Node n = locate((String) key, false);
+    return n == null || n.count == 0 ? null : n.count;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public Integer put(String key, Integer value) {
+    return set(locate(key, true), value);
+  }
+
+  @Override
+  public Integer merge(String key, Integer value, BiFunction<? super Integer, ? super Integer, ? extends Integer> fn) {
+    Node n = locate(key, true);
+    int count = n.count == 0 ? value : fn.apply(n.count, value);
+    set(n, count);
+    return count;
+  }
+
+  @Override
+  public Integer compute(String key, BiFunction<? super String, ? super Integer, ? extends Integer> fn) {
+    Node n = locate(key, true);
+    Integer count = fn.apply(key, n.count == 0 ? null : n.count);
+    set(n, count == null ? 0 : count);
+    return count;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** Number of nodes, the root included. */
+  int nodeCount() {
+    return nodes;
+  }
+
+  /**
+   * Estimates the heap footprint of the trie, with the same assumptions as
+   * RunStats.estimateFootprint: each node (24 B), its label char[] and its
+   * children array.
+   */
+  long estimateFootprint() {
+    long bytes = 0;
+    ArrayDeque<Node> todo = new ArrayDeque<>();
+    todo.push(root);
+    while (!todo.isEmpty()) {
+      Node n = todo.pop();
+      bytes += 24 + align(16 + 2L * n.label.length);
+      if (n.children.length > 0) {
+        bytes += align(16 + 4L * n.children.length);
+      }
+      for (Node c : n.children) {
+        todo.push(c);
+      }
+    }
+    return bytes;
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Integer>> entrySet() {
+    return new SubtreeSet(root, "", size);
+  }
+
+  /**
+   * A view of the words starting with prefix, in lexicographic order; only the
+   * subtree under the prefix is visited.
+   */
+  Map<String, Integer> prefixMap(String prefix) {
+    // walk down to the first node whose path covers the prefix
+    Node n = root;
+    StringBuilder path = new StringBuilder();
+    int i = 0;
+    while (i < prefix.length()) {
+      int ci = findChild(n, prefix.charAt(i));
+      if (ci < 0) {
+        return Map.of();
+      }
+      Node child = n.children[ci];
+      for (int j = 0; j < child.label.length && i + j < prefix.length(); j++) {
+        if (child.label[j] != prefix.charAt(i + j)) {
+          return Map.of();
+        }
+      }
+      path.append(child.label);
+      i += child.label.length;
+      n = child;
+    }
+    Node start = n;
+    String startPath = path.toString();
+    return new AbstractMap<String, Integer>() {
+      @Override
+      public Set<Map.Entry<String, Integer>> entrySet() {
+        return new SubtreeSet(start, startPath, -1);
+      }
+    };
+  }
+
+  /** The words of the subtree rooted at start, whose path is startPath. */
+  private static class SubtreeSet extends AbstractSet<Map.Entry<String, Integer>> {
+    private final Node start;
+    private final String startPath;
+    private final int size; // -1 if unknown
+
+    SubtreeSet(Node start, String startPath, int size) {
+      this.start = start;
+      this.startPath = startPath;
+      this.size = size;
+    }
+
+    @Override
+    public int size() {
+      if (size >= 0) {
+        return size;
+      }
+      int n = 0;
+      for (Iterator<Map.Entry<String, Integer>> it = iterator(); it.hasNext(); it.next()) {
+        n++;
+      }
+      return n;
+    }
+
+    /** Depth first, children in order: the words come out sorted. */
+    @Override
+    public Iterator<Map.Entry<String, Integer>> iterator() {
+      return new Iterator<Map.Entry<String, Integer>>() {
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+        private final ArrayDeque<Integer> depths = new ArrayDeque<>(); // path length before each node
+        private final StringBuilder path = new StringBuilder(startPath);
+        private Map.Entry<String, Integer> next;
+
+        {
+          if (start.count > 0) {
+            next = new SimpleImmutableEntry<>(startPath, start.count);
+          }
+          pushChildren(start, path.length());
+          if (next == null) {
+            advance();
+          }
+        }
+
+        private void pushChildren(Node n, int depth) {
+          for (int i = n.children.length - 1; i >= 0; i--) {
+            stack.push(n.children[i]);
+            depths.push(depth);
+          }
+        }
+
+        private void advance() {
+          next = null;
+          while (next == null && !stack.isEmpty()) {
+            Node n = stack.pop();
+            int depth = depths.pop();
+            path.setLength(depth);
+            path.append(n.label);
+            if (n.count > 0) {
+              next = new SimpleImmutableEntry<>(path.toString(), n.count);
+            }
+            pushChildren(n, path.length());
+          }
+        }
+
+        @Override
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Integer> next() {
+          if (next == null) {
+            throw new NoSuchElementException();
+          }
+          Map.Entry<String, Integer> e = next;
+          advance();
+          return e;
+        }
+      };
+    }
+  }
+}
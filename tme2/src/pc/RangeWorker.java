@@ -0,0 +1,103 @@
+package pc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A thread working on the byte range [start, end) of an input: the part common
+ * to all partition workers. It records its word count and wall time in its
+ * WorkerStats, and keeps whatever it fails with, checked exception, runtime
+ * exception or error (such as an OutOfMemoryError), for the coordinator to
+ * rethrow after join() (see runAll).
+ */
+abstract class RangeWorker extends Thread {
+
+  /** Creates the worker of the range [start, end). */
+  interface Factory<W extends RangeWorker> {
+    W create(long start, long end);
+  }
+
+  final long start;
+  final long end;
+  final RunStats.WorkerStats workerStats;
+  /** Words counted by work(). */
+  long totalWords;
+  private Throwable error;
+
+  RangeWorker(long start, long end, RunStats stats) {
+    this.start = start;
+    this.end = end;
+    this.workerStats = stats.newWorker(start, end);
+  }
+
+  @Override
+  public void run() {
+    long time = System.nanoTime();
+    try {
+      work();
+    } catch (Throwable t) {
+      error = t;
+    }
+    workerStats.words = totalWords;
+    workerStats.wallNanos = System.nanoTime() - time;
+  }
+
+  /** Processes the range, in the calling thread. */
+  abstract void work() throws IOException;
+
+  /** Rethrows what work() failed with, if anything. */
+  void rethrow() throws IOException {
+    if (error instanceof IOException) {
+      throw (IOException) error;
+    }
+    if (error instanceof Error) {
+      throw (Error) error;
+    }
+    if (error != null) {
+      throw new IOException("Worker on range [" + start + ", " + end + ") failed", error);
+    }
+  }
+
+  /**
+   * Runs one worker per range [parts[i], parts[i+1]) in its own thread, then
+   * waits for all of them. Empty ranges, which FileUtils.partition gives when
+   * the file has fewer boundaries than parts, get no worker.
+   *
+   * @return the workers, in the order of their ranges
+   * @throws IOException if a worker failed, or if interrupted
+   */
+  static <W extends RangeWorker> List<W> runAll(long[] parts, Factory<W> factory) throws IOException {
+    List<W> workers = new ArrayList<>();
+    for (int i = 0; i + 1 < parts.length; i++) {
+      if (parts[i] < parts[i + 1]) {
+        W worker = factory.create(parts[i], parts[i + 1]);
+        workers.add(worker);
+        worker.start();
+      }
+    }
+    joinAll(workers);
+    return workers;
+  }
+
+  /**
+   * Waits for all threads, then rethrows the first failure of a RangeWorker.
+   *
+   * @throws IOException if a worker failed, or if interrupted
+   */
+  static void joinAll(List<? extends Thread> threads) throws IOException {
+    for (Thread t : threads) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for workers", e);
+      }
+    }
+    for (Thread t : threads) {
+      if (t instanceof RangeWorker) {
+        ((RangeWorker) t).rethrow();
+      }
+    }
+  }
+}
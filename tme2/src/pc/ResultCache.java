@@ -0,0 +1,216 @@
+package pc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of word count tables (used with --cache).
+ *
+ * Entries are keyed by a fingerprint of the input file: canonical path, size,
+ * last modification time and a CRC of a few sampled blocks of its content, and
+ * by the kind of table, so that modes reading different words never share an
+ * entry. A hit returns the stored table without reading the input file. The cache
+ * directory is bounded in size; least recently used entries (by file
+ * modification time, refreshed on each hit) are evicted first.
+ */
+class ResultCache {
+
+  static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+  private static final int MAGIC = 0x57464332; // "WFC2"
+  private static final String SUFFIX = ".wfc";
+  private static final int SAMPLES = 8;
+  private static final int SAMPLE_SIZE = 4096;
+
+  private final Path dir;
+  private final long maxBytes;
+
+  /** A cached result: the total number of words and the count table. */
+  static class Result {
+    final long totalWords;
+    final Map<String, Integer> map;
+
+    Result(long totalWords, Map<String, Integer> map) {
+      this.totalWords = totalWords;
+      this.map = map;
+    }
+  }
+
+  public ResultCache(Path dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  /** The default cache directory, ~/.cache/pc-wordfrequency. */
+  static Path defaultDir() {
+    return Paths.get(System.getProperty("user.home"), ".cache", "pc-wordfrequency");
+  }
+
+  /**
+   * Computes the fingerprint of a file: path, size, modification time and a
+   * CRC32 of SAMPLES evenly spaced blocks of SAMPLE_SIZE bytes (first and last
+   * block included).
+   *
+   * @param f the file
+   * @return a string identifying the current content of f
+   * @throws IOException if the file cannot be read
+   */
+  static String fingerprint(File f) throws IOException {
+    long size = f.length();
+    CRC32 crc = new CRC32();
+    byte[] buf = new byte[SAMPLE_SIZE];
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+      long span = Math.max(0, size - SAMPLE_SIZE);
+      for (int i = 0; i < SAMPLES; i++) {
+        raf.seek(span * i / (SAMPLES - 1));
+        int read = raf.read(buf);
+        if (read > 0) {
+          crc.update(buf, 0, read);
+        }
+      }
+    }
+    return f.getCanonicalPath() + "|" + size + "|" + f.lastModified() + "|" + Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * Looks up the result for a file.
+   *
+   * @param f    the input file
+   * @param kind the kind of table, e.g. "hash|UTF-8" for the table of hash
+   *             mode with UTF-8 as the default charset
+   * @return the cached result, or null on a miss
+   * @throws IOException if the fingerprint cannot be computed
+   */
+  public Result lookup(File f, String kind) throws IOException {
+    String fingerprint = fingerprint(f) + "|" + kind;
+    Path entry = entryFor(fingerprint);
+    if (!Files.exists(entry)) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+      if (in.readInt() != MAGIC || !in.readUTF().equals(fingerprint)) {
+        return null; // stale or foreign entry, will be overwritten
+      }
+      long totalWords = in.readLong();
+      int size = in.readInt();
+      Map<String, Integer> map = new HashMap<>(size * 4 / 3 + 1);
+      byte[] bytes = new byte[64];
+      for (int i = 0; i < size; i++) {
+        int length = in.readInt();
+        if (length > bytes.length) {
+          bytes = new byte[Math.max(length, 2 * bytes.length)];
+        }
+        in.readFully(bytes, 0, length);
+        map.put(new String(bytes, 0, length, StandardCharsets.UTF_8), in.readInt());
+      }
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+      return new Result(totalWords, map);
+    } catch (IOException e) {
+      System.err.println("Ignoring unreadable cache entry " + entry + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Stores the result for a file, then evicts old entries if the cache exceeds
+   * its size bound. The entry is written to a temporary file then moved in
+   * place, so concurrent readers never see a partial entry.
+   *
+   * @param f          the input file
+   * @param kind       the kind of table, as in lookup
+   * @param totalWords total number of words
+   * @param map        the count table
+   * @throws IOException if the cache directory cannot be written
+   */
+  public void store(File f, String kind, long totalWords, Map<String, Integer> map) throws IOException {
+    String fingerprint = fingerprint(f) + "|" + kind;
+    Files.createDirectories(dir);
+    Path entry = entryFor(fingerprint);
+    Path tmp = Files.createTempFile(dir, "entry", ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeUTF(fingerprint);
+        out.writeLong(totalWords);
+        out.writeInt(map.size());
+        for (Map.Entry<String, Integer> e : map.entrySet()) {
+          // not writeUTF, limited to 65535 bytes
+          byte[] bytes = e.getKey().getBytes(StandardCharsets.UTF_8);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+          out.writeInt(e.getValue());
+        }
+      }
+      Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    evict();
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache fits in maxBytes.
+   *
+   * @throws IOException if the cache directory cannot be listed
+   */
+  void evict() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    long total = 0;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      for (Path p : stream) {
+        entries.add(p);
+        total += Files.size(p);
+      }
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    Map<Path, Long> lastUsed = new HashMap<>();
+    for (Path p : entries) {
+      lastUsed.put(p, Files.getLastModifiedTime(p).toMillis());
+    }
+    entries.sort((p1, p2) -> Long.compare(lastUsed.get(p1), lastUsed.get(p2)));
+    for (Path p : entries) {
+      if (total <= maxBytes) {
+        break;
+      }
+      long size = Files.size(p);
+      if (Files.deleteIfExists(p)) {
+        total -= size;
+      }
+    }
+  }
+
+  private Path entryFor(String fingerprint) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] digest = md.digest(fingerprint.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 16; i++) {
+        sb.append(String.format("%02x", digest[i]));
+      }
+      return dir.resolve(sb + SUFFIX);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is required by the Java platform", e);
+    }
+  }
+}
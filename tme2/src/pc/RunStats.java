@@ -0,0 +1,190 @@
+package pc;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Timing and memory instrumentation of a WordFrequency run (enabled with
+ * --stats).
+ *
+ * Phases are accumulated in nanoseconds under a name (partition, open,
+ * tokenize, count, merge, sort, print); tokenize and count are summed over all
+ * workers. Each worker also records its own range, word count, wall time and
+ * allocated bytes. The report is emitted as a single JSON object.
+ */
+class RunStats {
+
+  private final boolean enabled;
+  private final Map<String, Long> phases = new LinkedHashMap<>();
+  private final List<WorkerStats> workers = new ArrayList<>();
+  private final Map<String, long[]> gcAtStart = new LinkedHashMap<>();
+  private long entries;
+  private long mapBytes;
+
+  /**
+   * Per-worker counters. A worker fills its own instance, the coordinator reads
+   * it after join().
+   */
+  static class WorkerStats {
+    final int id;
+    final long start;
+    final long end;
+    long words;
+    long wallNanos;
+    long openNanos;
+    long tokenizeNanos;
+    long countNanos;
+    long allocatedBytes = -1;
+
+    WorkerStats(int id, long start, long end) {
+      this.id = id;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  RunStats(boolean enabled) {
+    this.enabled = enabled;
+    if (enabled) {
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        gcAtStart.put(gc.getName(), new long[] { gc.getCollectionCount(), gc.getCollectionTime() });
+      }
+    }
+  }
+
+  /** Whether fine-grained (per word) timings should be taken. */
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Adds nanos to the named phase. */
+  void phase(String name, long nanos) {
+    if (enabled) {
+      synchronized (phases) {
+        phases.merge(name, nanos, Long::sum);
+      }
+    }
+  }
+
+  /** Registers a new worker on the byte range [start, end). */
+  WorkerStats newWorker(long start, long end) {
+    synchronized (workers) {
+      WorkerStats w = new WorkerStats(workers.size(), start, end);
+      workers.add(w);
+      return w;
+    }
+  }
+
+  /** Records the final table, to report its estimated footprint. */
+  void setResult(Map<String, Integer> map) {
+    if (enabled) {
+      entries = map.size();
+      mapBytes = estimateFootprint(map);
+    }
+  }
+
+  /**
+   * Bytes allocated so far by the calling thread, or -1 if the JVM does not
+   * support it.
+   */
+  static long currentThreadAllocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+      if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+        return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Estimates the heap footprint of a HashMap<String,Integer>, assuming a 64 bit
+   * JVM with compressed oops and compact (Latin-1) strings: table slots, one
+   * node per entry, the key String and its byte[], and the boxed count when it
+   * falls outside the Integer cache. A TreeMap has no table and larger nodes.
+   * For an OffHeapMap, its native memory; for a RadixTrie, its own estimate.
+   */
+  static long estimateFootprint(Map<String, Integer> map) {
+    if (map instanceof OffHeapMap) {
+      return ((OffHeapMap) map).offHeapBytes();
+    }
+    if (map instanceof RadixTrie) {
+      return ((RadixTrie) map).estimateFootprint();
+    }
+    boolean tree = map instanceof TreeMap;
+    long capacity = Integer.highestOneBit(Math.max(1, (int) (map.size() / 0.75f)) * 2 - 1);
+    long bytes = tree ? 48 : 16 + align(16 + 4 * capacity);
+    for (Map.Entry<String, Integer> e : map.entrySet()) {
+      bytes += tree ? 40 : 32; // TreeMap.Entry or HashMap.Node
+      bytes += 24 + align(16 + e.getKey().length()); // String + byte[]
+      int v = e.getValue();
+      if (v < -128 || v > 127) {
+        bytes += 16; // Integer
+      }
+    }
+    return bytes;
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  /** Builds the JSON report. */
+  String toJson(String file, String mode, long totalNanos) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"file\":\"").append(escape(file)).append("\",\"mode\":\"").append(escape(mode)).append('"');
+    sb.append(",\"totalMs\":").append(ms(totalNanos));
+
+    sb.append(",\"phasesMs\":{");
+    String sep = "";
+    for (Map.Entry<String, Long> e : phases.entrySet()) {
+      sb.append(sep).append('"').append(e.getKey()).append("\":").append(ms(e.getValue()));
+      sep = ",";
+    }
+    sb.append('}');
+
+    sb.append(",\"workers\":[");
+    sep = "";
+    for (WorkerStats w : workers) {
+      sb.append(sep).append("{\"id\":").append(w.id).append(",\"start\":").append(w.start).append(",\"end\":")
+          .append(w.end).append(",\"bytes\":").append(w.end - w.start).append(",\"words\":").append(w.words)
+          .append(",\"wallMs\":").append(ms(w.wallNanos)).append(",\"openMs\":").append(ms(w.openNanos))
+          .append(",\"tokenizeMs\":").append(ms(w.tokenizeNanos)).append(",\"countMs\":").append(ms(w.countNanos))
+          .append(",\"allocatedBytes\":").append(w.allocatedBytes).append('}');
+      sep = ",";
+    }
+    sb.append(']');
+
+    sb.append(",\"gc\":[");
+    sep = "";
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      long[] before = gcAtStart.getOrDefault(gc.getName(), new long[2]);
+      sb.append(sep).append("{\"name\":\"").append(escape(gc.getName())).append("\",\"collections\":")
+          .append(gc.getCollectionCount() - before[0]).append(",\"timeMs\":")
+          .append(gc.getCollectionTime() - before[1]).append('}');
+      sep = ",";
+    }
+    sb.append(']');
+
+    sb.append(",\"map\":{\"entries\":").append(entries).append(",\"estimatedBytes\":").append(mapBytes)
+        .append(",\"bytesPerEntry\":").append(entries == 0 ? 0 : mapBytes / entries).append('}');
+    sb.append('}');
+    return sb.toString();
+  }
+
+  private static String ms(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
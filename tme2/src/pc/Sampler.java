@@ -0,0 +1,219 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Estimates word frequencies from random samples of a file (used in "sample"
+ * mode).
+ *
+ * A sample is a window of about WINDOW_BYTES read at a random offset, snapped
+ * forward to a token boundary with FileUtils.nextBoundary and cut after its
+ * last whitespace, so it only holds whole tokens. The frequency of a word is
+ * estimated as its share of all the words sampled (a ratio estimator over
+ * cluster samples), with a 95% confidence interval from the variance between
+ * samples: for each word, workers accumulate the sum of its counts c, of c^2
+ * and of c * m over samples of m words, which is enough to compute the
+ * variance without keeping the samples.
+ *
+ * Sampling runs in rounds of numThreads workers, each sampling until the end
+ * of the round; the estimates are refined and printed after each round, until
+ * the time budget runs out.
+ */
+class Sampler {
+
+  static final int WINDOW_BYTES = 4096;
+  static final int ROUNDS = 5;
+  private static final double Z95 = 1.96;
+
+  private final File file;
+  private final long size;
+  private final int numThreads;
+  private final RunStats stats;
+  private final SplittableRandom random = new SplittableRandom();
+
+  // accumulated over all samples: per word {sum c, sum c^2, sum c * m}
+  private final Map<String, long[]> sums = new HashMap<>();
+  private long samples;
+  private long sampledBytes;
+  private long words; // sum m
+  private double wordsSquared; // sum m^2
+
+  /** Samples until its deadline, accumulating in its own sums. */
+  private class SampleWorker extends Thread {
+    private final long deadline;
+    private final SplittableRandom random;
+    private final Map<String, long[]> sums = new HashMap<>();
+    private long samples;
+    private long sampledBytes;
+    private long words;
+    private double wordsSquared;
+    private IOException error;
+
+    SampleWorker(long deadline, SplittableRandom random) {
+      this.deadline = deadline;
+      this.random = random;
+    }
+
+    @Override
+    public void run() {
+      byte[] window = new byte[WINDOW_BYTES];
+      Map<String, Integer> counts = new HashMap<>();
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        while (System.nanoTime() < deadline) {
+          long offset = random.nextLong(size);
+          long start = offset == 0 ? 0 : FileUtils.nextBoundary(raf, offset, size);
+          if (start < 0) {
+            continue; // no boundary after offset
+          }
+          raf.seek(start);
+          int n = raf.read(window);
+          if (n <= 0) {
+            continue;
+          }
+          // keep whole tokens only, unless the window reaches the end of file
+          int to = n;
+          if (start + n < size) {
+            while (to > 0 && !Character.isWhitespace(window[to - 1] & 0xFF)) {
+              to--;
+            }
+          }
+          counts.clear();
+          long m = PipeCounter.countWords(window, 0, to, counts, WordFrequency.COMPUTE);
+          for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            long c = e.getValue();
+            long[] s = sums.computeIfAbsent(e.getKey(), w -> new long[3]);
+            s[0] += c;
+            s[1] += c * c;
+            s[2] += c * m;
+          }
+          samples++;
+          sampledBytes += to;
+          words += m;
+          wordsSquared += (double) m * m;
+        }
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+  }
+
+  /** A word, its estimated frequency and the half-width of its 95% interval. */
+  static class Estimate {
+    final String word;
+    final double frequency;
+    final double margin;
+
+    Estimate(String word, double frequency, double margin) {
+      this.word = word;
+      this.frequency = frequency;
+      this.margin = margin;
+    }
+  }
+
+  Sampler(File file, int numThreads, RunStats stats) {
+    this.file = file;
+    this.size = file.length();
+    this.numThreads = numThreads;
+    this.stats = stats;
+  }
+
+  /**
+   * Samples the file during budgetMillis, printing the top k estimates after
+   * each round, then puts the estimated count of each sampled word in map.
+   *
+   * @return the estimated total number of words of the file
+   * @throws IOException if reading fails
+   */
+  long estimate(long budgetMillis, int k, Map<String, Integer> map) throws IOException {
+    if (size == 0) {
+      return 0; // no offset to draw
+    }
+    long start = System.nanoTime();
+    for (int round = 1; round <= ROUNDS; round++) {
+      long deadline = start + budgetMillis * 1_000_000L * round / ROUNDS;
+      List<SampleWorker> workers = new ArrayList<>();
+      for (int i = 0; i < numThreads; i++) {
+        SampleWorker worker = new SampleWorker(deadline, random.split());
+        workers.add(worker);
+        worker.start();
+      }
+      RangeWorker.joinAll(workers);
+      for (SampleWorker worker : workers) {
+        if (worker.error != null) {
+          throw worker.error;
+        }
+        merge(worker);
+      }
+      printTop(k);
+    }
+    stats.phase("sample", System.nanoTime() - start);
+
+    long totalWords = estimatedTotalWords();
+    for (Map.Entry<String, long[]> e : sums.entrySet()) {
+      map.put(e.getKey(), (int) Math.max(1, Math.round((double) e.getValue()[0] / words * totalWords)));
+    }
+    return totalWords;
+  }
+
+  private void merge(SampleWorker worker) {
+    for (Map.Entry<String, long[]> e : worker.sums.entrySet()) {
+      long[] s = sums.computeIfAbsent(e.getKey(), w -> new long[3]);
+      long[] t = e.getValue();
+      s[0] += t[0];
+      s[1] += t[1];
+      s[2] += t[2];
+    }
+    samples += worker.samples;
+    sampledBytes += worker.sampledBytes;
+    words += worker.words;
+    wordsSquared += worker.wordsSquared;
+  }
+
+  /** Words sampled, scaled by the ratio of file size to bytes sampled. */
+  private long estimatedTotalWords() {
+    return sampledBytes == 0 ? 0 : Math.round((double) words / sampledBytes * size);
+  }
+
+  /**
+   * The estimated frequency of a word and its 95% margin. The variance of the
+   * ratio sum(c) / sum(m) is sum((c - p m)^2) / (n (n - 1) mean(m)^2).
+   */
+  private Estimate estimate(String word, long[] s) {
+    double p = (double) s[0] / words;
+    double mean = (double) words / samples;
+    double squares = s[1] - 2 * p * s[2] + p * p * wordsSquared;
+    double variance = samples < 2 ? Double.NaN : Math.max(0, squares) / (samples * (samples - 1) * mean * mean);
+    return new Estimate(word, p, Z95 * Math.sqrt(variance));
+  }
+
+  /** The k words with the highest estimated frequency. */
+  List<Estimate> top(int k) {
+    Map<String, Integer> counts = new HashMap<>();
+    for (Map.Entry<String, long[]> e : sums.entrySet()) {
+      counts.put(e.getKey(), (int) e.getValue()[0]);
+    }
+    List<Estimate> top = new ArrayList<>();
+    for (Map.Entry<String, Integer> e : WordFrequency.topByFrequency(counts, k)) {
+      top.add(estimate(e.getKey(), sums.get(e.getKey())));
+    }
+    return top;
+  }
+
+  private void printTop(int k) {
+    // windows may overlap, so bytes sampled are no coverage of the file
+    System.out.println(String.format(Locale.ROOT, "Sampled %d windows, %d words, %d bytes sampled:", samples, words,
+        sampledBytes));
+    for (Estimate e : top(k)) {
+      System.out.println(String.format(Locale.ROOT, "  %-12s %.3f%% +/- %.3f%%", e.word, 100 * e.frequency,
+          100 * e.margin));
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parallel count into one shared ordered map (used in "skiplist" mode).
+ *
+ * All the partition workers update the same ConcurrentSkipListMap, a new word
+ * being inserted once with putIfAbsent and then counted by its LongAdder, so
+ * concurrent increments of a frequent word do not contend on one value. There
+ * are no local maps to merge, and the map iterates in alphabetical order
+ * without any sort; counts() exposes it as a Map<String,Integer> for the
+ * other methods of WordFrequency.
+ */
+class SkipListCounter {
+
+  private final ConcurrentSkipListMap<String, LongAdder> map = new ConcurrentSkipListMap<>();
+
+  /** Counts the byte range [start, end) of a file into the shared map. */
+  private class SkipListWorker extends RangeWorker {
+    private final File file;
+    private final RunStats stats;
+
+    SkipListWorker(File file, long start, long end, RunStats stats) {
+      super(start, end, stats);
+      this.file = file;
+      this.stats = stats;
+    }
+
+    @Override
+    void work() throws IOException {
+      try (InputStream in = FileUtils.getRange(file, start, end); Scanner scanner = new Scanner(in)) {
+        // the word counter ignores its map: words go to the shared one
+        totalWords = WordFrequency.countWords(scanner, null, (map, word) -> add(word), stats, workerStats);
+      }
+    }
+  }
+
+  /** Counts one occurrence of word; safe to call from any thread. */
+  void add(String word) {
+    LongAdder adder = map.get(word);
+    if (adder == null) {
+      LongAdder created = new LongAdder();
+      adder = map.putIfAbsent(word, created);
+      if (adder == null) {
+        adder = created;
+      }
+    }
+    adder.increment();
+  }
+
+  /**
+   * Counts each range [parts[i], parts[i+1]) of the file in its own thread.
+   *
+   * @return the number of words counted
+   * @throws IOException if reading fails
+   */
+  long count(File file, long[] parts, RunStats stats) throws IOException {
+    List<SkipListWorker> workers = RangeWorker.runAll(parts, (start, end) -> new SkipListWorker(file, start, end,
+        stats));
+    long totalWords = 0;
+    for (SkipListWorker worker : workers) {
+      totalWords += worker.totalWords;
+    }
+    return totalWords;
+  }
+
+  /**
+   * A read-only view of the counts, in alphabetical order. Counts are read from
+   * the adders while iterating, so it should only be used once the workers are
+   * done.
+   */
+  Map<String, Integer> counts() {
+    return new AbstractMap<String, Integer>() {
+      @Override
+      public Integer get(Object key) {
+        LongAdder adder = map.get(key);
+        return adder == null ? null : adder.intValue();
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return map.containsKey(key);
+      }
+
+      @Override
+      public Set<Map.Entry<String, Integer>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Integer>>() {
+          @Override
+          public int size() {
+            return map.size();
+          }
+
+          @Override
+          public Iterator<Map.Entry<String, Integer>> iterator() {
+            Iterator<Map.Entry<String, LongAdder>> it = map.entrySet().iterator();
+            return new Iterator<Map.Entry<String, Integer>>() {
+              @Override
+              public boolean hasNext() {
+                return it.hasNext();
+              }
+
+              @Override
+              public Map.Entry<String, Integer> next() {
+                Map.Entry<String, LongAdder> e = it.next();
+                return new SimpleImmutableEntry<>(e.getKey(), e.getValue().intValue());
+              }
+            };
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,329 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Parallel count by sorting instead of hashing (used in "sortagg" mode).
+ *
+ * Each worker cleans the words of its range (as cleanWord does: letters only,
+ * lowercased) straight into a byte arena, one word after the other, with no
+ * String or map entry per occurrence. The arena is then sorted with an MSD
+ * radix sort on the bytes of the words, and runs of equal words are collapsed
+ * into counts: a sorted run of distinct words. Memory is accessed in sequential
+ * passes rather than at random in a table larger than the caches, which pays
+ * off when the vocabulary is large. The sorted runs of all workers are finally
+ * combined by a streaming k-way merge, which also lists the words in
+ * alphabetical order with no extra sort.
+ */
+class SortAggregator {
+
+  /** Bytes of words after which an arena is sorted into a run and reset. */
+  static final int ARENA_LIMIT = 64 * 1024 * 1024;
+
+  /** Below this, a bucket is sorted by insertion. */
+  private static final int INSERTION_THRESHOLD = 24;
+
+  /** Past this depth, buckets are sorted by comparison, to bound recursion. */
+  private static final int MAX_DEPTH = 256;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private SortAggregator() {
+  }
+
+  /** For each byte: the lowercase ASCII letter to keep, 0 to drop, -1 for whitespace. */
+  private static final byte[] CLASS = new byte[256];
+  static {
+    for (int b = 0; b < 256; b++) {
+      if (Character.isWhitespace(b)) {
+        CLASS[b] = -1;
+      } else if (b >= 'a' && b <= 'z') {
+        CLASS[b] = (byte) b;
+      } else if (b >= 'A' && b <= 'Z') {
+        CLASS[b] = (byte) (b + ('a' - 'A'));
+      }
+    }
+  }
+
+  /** Words appended one after the other: word i is bytes[starts[i], starts[i+1]). */
+  static class Arena {
+    byte[] bytes = new byte[1024];
+    int size;
+    int[] starts = new int[256];
+    int count;
+
+    void append(byte b) {
+      if (size == bytes.length) {
+        bytes = Arrays.copyOf(bytes, 2 * size);
+      }
+      bytes[size++] = b;
+    }
+
+    /** Ends the current word, if it has any byte. */
+    void endWord() {
+      if (size > starts[count]) {
+        if (count + 2 > starts.length) {
+          starts = Arrays.copyOf(starts, 2 * starts.length);
+        }
+        starts[++count] = size;
+      }
+    }
+
+    void add(byte[] word) {
+      for (byte b : word) {
+        append(b);
+      }
+      endWord();
+    }
+
+    /** Sorts the words and collapses equal ones into a run. */
+    Run toRun() {
+      int[] ids = new int[count];
+      for (int i = 0; i < count; i++) {
+        ids[i] = i;
+      }
+      sort(ids, new int[count], 0, count, 0);
+
+      Run run = new Run(count);
+      for (int i = 0; i < count; i++) {
+        int id = ids[i];
+        int from = starts[id];
+        int to = starts[id + 1];
+        if (run.size > 0 && Arrays.equals(bytes, from, to, run.keys, run.starts[run.size - 1], run.length)) {
+          run.counts[run.size - 1]++;
+        } else {
+          run.add(bytes, from, to);
+        }
+      }
+      run.trim();
+      return run;
+    }
+
+    void clear() {
+      size = 0;
+      count = 0;
+    }
+
+    /** The byte of word id at depth, -1 past its end. */
+    private int byteAt(int id, int depth) {
+      int i = starts[id] + depth;
+      return i < starts[id + 1] ? bytes[i] & 0xFF : -1;
+    }
+
+    /** MSD radix sort of ids[lo, hi), whose words share their first depth bytes. */
+    private void sort(int[] ids, int[] aux, int lo, int hi, int depth) {
+      if (hi - lo < INSERTION_THRESHOLD) {
+        insertionSort(ids, lo, hi, depth);
+        return;
+      }
+      if (depth > MAX_DEPTH) {
+        Integer[] boxed = new Integer[hi - lo];
+        for (int i = lo; i < hi; i++) {
+          boxed[i - lo] = ids[i];
+        }
+        Arrays.sort(boxed, (a, b) -> compare(a, b, depth));
+        for (int i = lo; i < hi; i++) {
+          ids[i] = boxed[i - lo];
+        }
+        return;
+      }
+      // bucket 0 holds the words ending at depth, then one bucket per byte
+      int[] bucket = new int[258];
+      for (int i = lo; i < hi; i++) {
+        bucket[byteAt(ids[i], depth) + 2]++;
+      }
+      for (int c = 0; c < 257; c++) {
+        bucket[c + 1] += bucket[c];
+      }
+      for (int i = lo; i < hi; i++) {
+        aux[bucket[byteAt(ids[i], depth) + 1]++] = ids[i];
+      }
+      System.arraycopy(aux, 0, ids, lo, hi - lo);
+      // bucket[c] is now the end of bucket c, relative to lo
+      for (int c = 1; c < 257; c++) {
+        int from = lo + bucket[c - 1];
+        int to = lo + bucket[c];
+        if (to - from > 1) {
+          sort(ids, aux, from, to, depth + 1);
+        }
+      }
+    }
+
+    private void insertionSort(int[] ids, int lo, int hi, int depth) {
+      for (int i = lo + 1; i < hi; i++) {
+        int id = ids[i];
+        int j = i;
+        while (j > lo && compare(ids[j - 1], id, depth) > 0) {
+          ids[j] = ids[j - 1];
+          j--;
+        }
+        ids[j] = id;
+      }
+    }
+
+    private int compare(int a, int b, int depth) {
+      return Arrays.compareUnsigned(bytes, starts[a] + depth, starts[a + 1], bytes, starts[b] + depth,
+          starts[b + 1]);
+    }
+  }
+
+  /** Distinct words in increasing order, with their counts. */
+  static class Run {
+    byte[] keys;
+    int[] starts; // word i is keys[starts[i], starts[i+1])
+    int[] counts;
+    int size;
+    int length; // bytes used in keys
+
+    Run(int capacity) {
+      keys = new byte[1024];
+      starts = new int[capacity + 1];
+      counts = new int[capacity];
+    }
+
+    void add(byte[] bytes, int from, int to) {
+      int n = to - from;
+      if (length + n > keys.length) {
+        keys = Arrays.copyOf(keys, Math.max(2 * keys.length, length + n));
+      }
+      System.arraycopy(bytes, from, keys, length, n);
+      starts[size] = length;
+      counts[size++] = 1;
+      length += n;
+      starts[size] = length;
+    }
+
+    /** Frees the unused capacity. */
+    void trim() {
+      keys = Arrays.copyOf(keys, length);
+      starts = Arrays.copyOf(starts, size + 1);
+      counts = Arrays.copyOf(counts, size);
+    }
+  }
+
+  /** Sorts the words of the byte range [start, end) of a file into runs. */
+  private static class SortWorker extends RangeWorker {
+    private final File file;
+    private final List<Run> runs = new ArrayList<>();
+
+    SortWorker(File file, long start, long end, RunStats stats) {
+      super(start, end, stats);
+      this.file = file;
+    }
+
+    @Override
+    void work() throws IOException {
+      long time = System.nanoTime();
+      Arena arena = new Arena();
+      try (InputStream in = FileUtils.getRange(file, start, end)) {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          for (int i = 0; i < n; i++) {
+            byte c = CLASS[buf[i] & 0xFF];
+            if (c > 0) {
+              arena.append(c);
+            } else if (c < 0) {
+              arena.endWord();
+              if (arena.size >= ARENA_LIMIT) {
+                flush(arena);
+              }
+            }
+          }
+        }
+        arena.endWord();
+        flush(arena);
+      }
+      workerStats.tokenizeNanos = System.nanoTime() - time - workerStats.countNanos;
+    }
+
+    private void flush(Arena arena) {
+      long time = System.nanoTime();
+      totalWords += arena.count;
+      runs.add(arena.toRun());
+      arena.clear();
+      workerStats.countNanos += System.nanoTime() - time;
+    }
+  }
+
+  /**
+   * Sorts each range [parts[i], parts[i+1]) of the file in its own thread, then
+   * merges the runs into map, in alphabetical order.
+   *
+   * @return the number of words counted
+   * @throws IOException if reading fails
+   */
+  static long count(File file, long[] parts, Map<String, Integer> map, RunStats stats) throws IOException {
+    List<SortWorker> workers = RangeWorker.runAll(parts, (start, end) -> new SortWorker(file, start, end, stats));
+    List<Run> runs = new ArrayList<>();
+    long totalWords = 0;
+    for (SortWorker worker : workers) {
+      totalWords += worker.totalWords;
+      runs.addAll(worker.runs);
+    }
+
+    long time = System.nanoTime();
+    merge(runs, map);
+    stats.phase("merge", System.nanoTime() - time);
+    return totalWords;
+  }
+
+  /** Position in a run during the merge. */
+  private static class Cursor {
+    final Run run;
+    int index;
+
+    Cursor(Run run) {
+      this.run = run;
+    }
+
+    int from() {
+      return run.starts[index];
+    }
+
+    int to() {
+      return run.starts[index + 1];
+    }
+  }
+
+  /**
+   * Merges sorted runs in one streaming pass, as TableFile.merge does for
+   * tables: the counts of equal words are summed, and the words are put in map
+   * in increasing order.
+   */
+  static void merge(List<Run> runs, Map<String, Integer> map) {
+    PriorityQueue<Cursor> heap = new PriorityQueue<>(Math.max(1, runs.size()),
+        (c1, c2) -> Arrays.compareUnsigned(c1.run.keys, c1.from(), c1.to(), c2.run.keys, c2.from(), c2.to()));
+    for (Run run : runs) {
+      if (run.size > 0) {
+        heap.add(new Cursor(run));
+      }
+    }
+    while (!heap.isEmpty()) {
+      Cursor c = heap.poll();
+      int count = c.run.counts[c.index];
+      while (!heap.isEmpty() && Arrays.equals(c.run.keys, c.from(), c.to(), heap.peek().run.keys,
+          heap.peek().from(), heap.peek().to())) {
+        Cursor same = heap.poll();
+        count += same.run.counts[same.index];
+        if (++same.index < same.run.size) {
+          heap.add(same);
+        }
+      }
+      // words are ASCII letters only
+      map.merge(new String(c.run.keys, c.from(), c.to() - c.from(), StandardCharsets.ISO_8859_1), count,
+          Integer::sum);
+      if (++c.index < c.run.size) {
+        heap.add(c);
+      }
+    }
+  }
+}
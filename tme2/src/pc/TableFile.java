@@ -0,0 +1,189 @@
+package pc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Compact binary format for a partial count table, sorted by word.
+ *
+ * Layout: magic, total number of words (long), number of entries (int), then
+ * for each entry in increasing order: length of the prefix shared with the
+ * previous word, length of the remaining suffix, the suffix bytes (UTF-8) and
+ * the count; lengths and counts are varints. Since tables are sorted, several
+ * of them can be merged in a single streaming pass (see merge).
+ */
+class TableFile {
+
+  private static final int MAGIC = 0x57465431; // "WFT1"
+
+  private TableFile() {
+  }
+
+  /**
+   * Writes a table.
+   *
+   * @param path       the file to write
+   * @param totalWords total number of words counted
+   * @param map        the counts, in any order
+   * @throws IOException if writing fails
+   */
+  static void write(Path path, long totalWords, Map<String, Integer> map) throws IOException {
+    List<String> words = new ArrayList<>(map.keySet());
+    words.sort(null);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+      out.writeInt(MAGIC);
+      out.writeLong(totalWords);
+      out.writeInt(words.size());
+      byte[] previous = new byte[0];
+      for (String word : words) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        int shared = 0;
+        int max = Math.min(previous.length, bytes.length);
+        while (shared < max && previous[shared] == bytes[shared]) {
+          shared++;
+        }
+        writeVarint(out, shared);
+        writeVarint(out, bytes.length - shared);
+        out.write(bytes, shared, bytes.length - shared);
+        writeVarint(out, map.get(word));
+        previous = bytes;
+      }
+    }
+  }
+
+  /** Sequential reader of a table, positioned before the first entry. */
+  static class Reader implements Closeable {
+    private final DataInputStream in;
+    private final long totalWords;
+    private int remaining;
+    private byte[] key = new byte[64];
+    private int keyLength;
+    private String word;
+    private int count;
+
+    Reader(Path path) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+      if (in.readInt() != MAGIC) {
+        in.close();
+        throw new IOException("Not a table file: " + path);
+      }
+      totalWords = in.readLong();
+      remaining = in.readInt();
+    }
+
+    /** Moves to the next entry, returns false at the end of the table. */
+    boolean next() throws IOException {
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      int shared = readVarint(in);
+      int suffix = readVarint(in);
+      if (key.length < shared + suffix) {
+        byte[] bigger = new byte[2 * (shared + suffix)];
+        System.arraycopy(key, 0, bigger, 0, shared);
+        key = bigger;
+      }
+      in.readFully(key, shared, suffix);
+      keyLength = shared + suffix;
+      word = new String(key, 0, keyLength, StandardCharsets.UTF_8);
+      count = readVarint(in);
+      return true;
+    }
+
+    long getTotalWords() {
+      return totalWords;
+    }
+
+    String getWord() {
+      return word;
+    }
+
+    int getCount() {
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Merges sorted tables in one streaming pass: entries are read in word order
+   * across all tables, and the counts of equal words are summed before being
+   * put in the target map.
+   *
+   * @param parts the tables to merge
+   * @param map   the map receiving the merged counts
+   * @return the sum of the total number of words of the tables
+   * @throws IOException if reading fails
+   */
+  static long merge(List<Path> parts, Map<String, Integer> map) throws IOException {
+    PriorityQueue<Reader> heap = new PriorityQueue<>((r1, r2) -> r1.getWord().compareTo(r2.getWord()));
+    List<Reader> readers = new ArrayList<>();
+    long totalWords = 0;
+    try {
+      for (Path p : parts) {
+        Reader r = new Reader(p);
+        readers.add(r);
+        totalWords += r.getTotalWords();
+        if (r.next()) {
+          heap.add(r);
+        }
+      }
+      while (!heap.isEmpty()) {
+        Reader r = heap.poll();
+        String word = r.getWord();
+        int count = r.getCount();
+        while (!heap.isEmpty() && heap.peek().getWord().equals(word)) {
+          Reader same = heap.poll();
+          count += same.getCount();
+          if (same.next()) {
+            heap.add(same);
+          }
+        }
+        map.merge(word, count, Integer::sum);
+        if (r.next()) {
+          heap.add(r);
+        }
+      }
+    } finally {
+      for (Reader r : readers) {
+        r.close();
+      }
+    }
+    return totalWords;
+  }
+
+  private static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarint(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+}
@@ -0,0 +1,404 @@
+package pc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Per-document term statistics and TF-IDF (used in "tfidf" mode).
+ *
+ * Documents are the files of a directory, or the sections of one file, a
+ * section starting at each line matching a separator regex (blank lines by
+ * default, making paragraphs the documents, or chapter titles with --docsep).
+ * The separator line is the title of its section, not part of
+ * its text, and documents with no words (the entries of a table of contents,
+ * empty files) are dropped before document frequencies are computed, as they
+ * would count against every term. Words are those of Scanner + cleanWord.
+ *
+ * Workers count the term frequencies of the documents of their files, or of
+ * their range of lines, against a local vocabulary; a document is two sorted
+ * arrays of term ids and frequencies, with no map per document. Local ids are
+ * then translated to global ids through a shared ConcurrentHashMap, the
+ * sections cut by range boundaries are stitched back together, document
+ * frequencies are reduced concurrently into an AtomicIntegerArray, and the
+ * top terms of each document by tf * idf are written out, one line per
+ * document.
+ */
+class TfIdf {
+
+  private final int numThreads;
+  private final int top;
+
+  /** A document: its term ids in increasing order, with their frequencies. */
+  private static class Doc {
+    final String title;
+    int number; // from 1, in input order
+    int[] terms;
+    int[] tf;
+    long length; // number of words
+
+    Doc(String title) {
+      this.title = title;
+    }
+
+    /** Sorts the terms by id, keeping each with its frequency. */
+    void sortTerms() {
+      long[] pairs = new long[terms.length];
+      for (int i = 0; i < terms.length; i++) {
+        pairs[i] = (long) terms[i] << 32 | tf[i];
+      }
+      Arrays.sort(pairs);
+      for (int i = 0; i < pairs.length; i++) {
+        terms[i] = (int) (pairs[i] >>> 32);
+        tf[i] = (int) pairs[i];
+      }
+    }
+
+    /** Adds the terms of the next part of the same document. */
+    void append(Doc next) {
+      int[] mergedTerms = new int[terms.length + next.terms.length];
+      int[] mergedTf = new int[mergedTerms.length];
+      int i = 0;
+      int j = 0;
+      int n = 0;
+      while (i < terms.length || j < next.terms.length) {
+        if (j == next.terms.length || i < terms.length && terms[i] < next.terms[j]) {
+          mergedTerms[n] = terms[i];
+          mergedTf[n++] = tf[i++];
+        } else if (i == terms.length || next.terms[j] < terms[i]) {
+          mergedTerms[n] = next.terms[j];
+          mergedTf[n++] = next.tf[j++];
+        } else {
+          mergedTerms[n] = terms[i];
+          mergedTf[n++] = tf[i++] + next.tf[j++];
+        }
+      }
+      terms = Arrays.copyOf(mergedTerms, n);
+      tf = Arrays.copyOf(mergedTf, n);
+      length += next.length;
+    }
+  }
+
+  /**
+   * Counts the documents of a list of files, or of the lines [start, end) of a
+   * file split at separator lines.
+   */
+  private static class DocWorker extends RangeWorker {
+    private final List<File> files;
+    private final File file;
+    private final Pattern separator;
+    private final Map<String, Integer> vocabulary = new HashMap<>();
+    private final List<String> words = new ArrayList<>();
+    private final List<Doc> docs = new ArrayList<>();
+    /** The end of a section started in a previous range, or null. */
+    private Doc leading;
+    private int[] counts = new int[1024]; // by local id, for the current document
+    private int[] touched = new int[256]; // local ids seen in the current document
+    private int touchedSize;
+    private Doc current;
+
+    /** A worker on files, its range being their indices. */
+    DocWorker(List<File> files, RunStats stats) {
+      super(0, files.size(), stats);
+      this.files = files;
+      this.file = null;
+      this.separator = null;
+    }
+
+    DocWorker(File file, long start, long end, Pattern separator, RunStats stats) {
+      super(start, end, stats);
+      this.files = null;
+      this.file = file;
+      this.separator = separator;
+    }
+
+    @Override
+    void work() throws IOException {
+      if (files != null) {
+        for (File f : files) {
+          current = new Doc(f.getName());
+          try (InputStream in = FileUtils.tracked(Files.newInputStream(f.toPath()))) {
+            readLines(in);
+          }
+          endDoc();
+        }
+      } else {
+        current = new Doc(start == 0 ? "(start)" : null);
+        try (InputStream in = FileUtils.getRange(file, start, end)) {
+          readLines(in);
+        }
+        endDoc();
+      }
+    }
+
+    private void readLines(InputStream in) throws IOException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (separator != null && separator.matcher(line).find()) {
+          endDoc();
+          current = new Doc(line.trim());
+          continue; // the title is not text
+        }
+        int i = 0;
+        while (i < line.length()) {
+          while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+            i++;
+          }
+          int from = i;
+          while (i < line.length() && !Character.isWhitespace(line.charAt(i))) {
+            i++;
+          }
+          if (i > from) {
+            String word = WordFrequency.cleanWord(line.substring(from, i));
+            if (!word.isEmpty()) {
+              add(word);
+            }
+          }
+        }
+      }
+    }
+
+    private void add(String word) {
+      Integer id = vocabulary.get(word);
+      if (id == null) {
+        id = words.size();
+        vocabulary.put(word, id);
+        words.add(word);
+        if (id == counts.length) {
+          counts = Arrays.copyOf(counts, 2 * id);
+        }
+      }
+      if (counts[id]++ == 0) {
+        if (touchedSize == touched.length) {
+          touched = Arrays.copyOf(touched, 2 * touchedSize);
+        }
+        touched[touchedSize++] = id;
+      }
+      current.length++;
+      totalWords++;
+    }
+
+    /** Freezes the counts of the current document. */
+    private void endDoc() {
+      Doc doc = current;
+      doc.terms = Arrays.copyOf(touched, touchedSize);
+      doc.tf = new int[touchedSize];
+      for (int i = 0; i < touchedSize; i++) {
+        doc.tf[i] = counts[touched[i]];
+        counts[touched[i]] = 0;
+      }
+      touchedSize = 0;
+      if (doc.title == null) {
+        leading = doc;
+      } else {
+        docs.add(doc);
+      }
+    }
+
+    /** Translates local ids into global ids, assigning new ones as needed. */
+    void globalize(Map<String, Integer> ids, AtomicInteger nextId) {
+      int[] global = new int[words.size()];
+      for (int i = 0; i < global.length; i++) {
+        global[i] = ids.computeIfAbsent(words.get(i), w -> nextId.getAndIncrement());
+      }
+      List<Doc> all = new ArrayList<>(docs);
+      if (leading != null) {
+        all.add(leading);
+      }
+      for (Doc doc : all) {
+        for (int i = 0; i < doc.terms.length; i++) {
+          doc.terms[i] = global[doc.terms[i]];
+        }
+        doc.sortTerms();
+      }
+    }
+  }
+
+  /**
+   * @param top number of terms to write per document
+   */
+  TfIdf(int numThreads, int top) {
+    this.numThreads = numThreads;
+    this.top = top;
+  }
+
+  /**
+   * Computes the TF-IDF of the documents of a directory (each file is a
+   * document) or of a file (split at lines matching separator), and writes the
+   * top terms of each document to out, as tab-separated lines: number, title,
+   * length in words, then term:score pairs.
+   *
+   * @param counts receives the total count of each word
+   * @return the number of words read
+   * @throws IOException if reading or writing fails
+   */
+  long run(File input, Pattern separator, File out, Map<String, Integer> counts, RunStats stats)
+      throws IOException {
+    // 1. term frequencies per document, local ids
+    long time = System.nanoTime();
+    List<DocWorker> workers = new ArrayList<>();
+    if (input.isDirectory()) {
+      File[] files = input.listFiles(File::isFile);
+      if (files == null) {
+        throw new IOException("Cannot list " + input);
+      }
+      Arrays.sort(files);
+      for (int i = 0; i < numThreads; i++) {
+        int from = files.length * i / numThreads;
+        int to = files.length * (i + 1) / numThreads;
+        if (from < to) {
+          workers.add(new DocWorker(Arrays.asList(files).subList(from, to), stats));
+        }
+      }
+      for (DocWorker worker : workers) {
+        worker.start();
+      }
+      RangeWorker.joinAll(workers);
+    } else {
+      long[] parts = FileUtils.partitionLines(input, numThreads);
+      workers = RangeWorker.runAll(parts, (start, end) -> new DocWorker(input, start, end, separator, stats));
+    }
+    long totalWords = 0;
+    for (DocWorker worker : workers) {
+      totalWords += worker.totalWords;
+    }
+    stats.phase("count", System.nanoTime() - time);
+
+    // 2. global ids, in parallel since the map is concurrent
+    time = System.nanoTime();
+    Map<String, Integer> ids = new ConcurrentHashMap<>();
+    AtomicInteger nextId = new AtomicInteger();
+    List<Runnable> tasks = new ArrayList<>();
+    for (DocWorker worker : workers) {
+      tasks.add(() -> worker.globalize(ids, nextId));
+    }
+    inParallel(tasks);
+
+    // 3. sections cut by range boundaries are stitched back, in order
+    List<Doc> docs = new ArrayList<>();
+    for (DocWorker worker : workers) {
+      if (worker.leading != null) {
+        if (docs.isEmpty()) {
+          docs.add(new Doc("(start)"));
+          docs.get(0).terms = new int[0];
+          docs.get(0).tf = new int[0];
+        }
+        docs.get(docs.size() - 1).append(worker.leading);
+      }
+      docs.addAll(worker.docs);
+    }
+    // only once stitched: a section may start empty at the end of a range
+    docs.removeIf(doc -> doc.length == 0);
+    for (int d = 0; d < docs.size(); d++) {
+      docs.get(d).number = d + 1;
+    }
+    stats.phase("ids", System.nanoTime() - time);
+
+    // 4. document and collection frequencies, reduced concurrently
+    time = System.nanoTime();
+    int vocabularySize = nextId.get();
+    AtomicIntegerArray df = new AtomicIntegerArray(vocabularySize);
+    AtomicIntegerArray cf = new AtomicIntegerArray(vocabularySize);
+    forEachDoc(docs, doc -> {
+      for (int i = 0; i < doc.terms.length; i++) {
+        df.incrementAndGet(doc.terms[i]);
+        cf.addAndGet(doc.terms[i], doc.tf[i]);
+      }
+    });
+    String[] words = new String[vocabularySize];
+    for (Map.Entry<String, Integer> e : ids.entrySet()) {
+      words[e.getValue()] = e.getKey();
+      counts.put(e.getKey(), cf.get(e.getValue()));
+    }
+    stats.phase("df", System.nanoTime() - time);
+
+    // 5. top terms of each document by tf * idf
+    time = System.nanoTime();
+    String[] lines = new String[docs.size()];
+    double n = docs.size();
+    forEachDoc(docs, doc -> {
+      double[] scores = new double[doc.terms.length];
+      Integer[] order = new Integer[scores.length];
+      for (int i = 0; i < scores.length; i++) {
+        scores[i] = (double) doc.tf[i] / doc.length * Math.log(n / df.get(doc.terms[i]));
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> scores[a] != scores[b] ? Double.compare(scores[b], scores[a])
+          : words[doc.terms[a]].compareTo(words[doc.terms[b]]));
+      StringBuilder sb = new StringBuilder();
+      sb.append(doc.number).append('\t').append(doc.title).append('\t').append(doc.length);
+      for (int i = 0; i < Math.min(top, order.length); i++) {
+        sb.append('\t').append(words[doc.terms[order[i]]]).append(':')
+            .append(String.format(Locale.ROOT, "%.5f", scores[order[i]]));
+      }
+      lines[doc.number - 1] = sb.toString();
+    });
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(out.toPath(), StandardCharsets.UTF_8))) {
+      for (String line : lines) {
+        writer.println(line);
+      }
+    }
+    stats.phase("score", System.nanoTime() - time);
+    System.out.println("TF-IDF of " + docs.size() + " documents (" + vocabularySize + " terms) written to " + out);
+    return totalWords;
+  }
+
+  /** Runs action on every document, the documents being split among threads. */
+  private void forEachDoc(List<Doc> docs, Consumer<Doc> action) throws IOException {
+    List<Runnable> tasks = new ArrayList<>();
+    for (int i = 0; i < numThreads; i++) {
+      List<Doc> slice = docs.subList(docs.size() * i / numThreads, docs.size() * (i + 1) / numThreads);
+      tasks.add(() -> slice.forEach(action));
+    }
+    inParallel(tasks);
+  }
+
+  /**
+   * Runs each task in its own thread, waits for all of them, then rethrows the
+   * first failure as RangeWorker does: errors as is, anything else in an
+   * IOException.
+   */
+  private static void inParallel(List<Runnable> tasks) throws IOException {
+    Throwable[] errors = new Throwable[tasks.size()];
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < tasks.size(); i++) {
+      int task = i;
+      threads.add(new Thread(() -> {
+        try {
+          tasks.get(task).run();
+        } catch (Throwable t) {
+          errors[task] = t;
+        }
+      }));
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    RangeWorker.joinAll(threads);
+    for (Throwable error : errors) {
+      if (error instanceof Error) {
+        throw (Error) error;
+      }
+      if (error != null) {
+        throw new IOException("TF-IDF task failed", error);
+      }
+    }
+  }
+}
@@ -0,0 +1,694 @@
+package pc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A user token spec (a regular expression) compiled into a table-driven DFA
+ * over bytes (used with --tokens=spec).
+ *
+ * The spec is parsed once, turned into an NFA, then determinized into a flat
+ * int table of 256 transitions per state, so tokenizing costs one table lookup
+ * per byte and no java.util.regex at all. Tokens are the leftmost-longest
+ * matches of the spec in the input, as a lexer would find them; bytes outside
+ * any match are skipped. The tokens are not lowercased.
+ *
+ * Supported syntax: literals (UTF-8 encoded), '.' (any byte but a newline),
+ * classes [a-z_] and [^...] (ASCII members only, negation covers all bytes),
+ * escapes \d \w \s \D \W \S \t \n \r \xHH and escaped metacharacters, groups,
+ * alternation, and the quantifiers * + ? {m} {m,} {m,n}. For instance
+ * "[A-Za-z_][A-Za-z0-9_]*" finds identifiers, "\d{1,3}(\.\d{1,3}){3}" IPv4
+ * addresses and "#\w+" hashtags.
+ *
+ * In partitioned modes, ranges are cut at whitespace: tokens that may contain
+ * whitespace can be cut in two at a range boundary.
+ */
+class TokenDfa {
+
+  /** Above this, the spec is rejected: the table would not fit in cache. */
+  static final int MAX_STATES = 4096;
+
+  private static final int DEAD = 0;
+  private static final int START = 1;
+
+  /** next state = table[state << 8 | byte], DEAD when no token continues. */
+  private final int[] table;
+  private final boolean[] accepting;
+
+  private TokenDfa(int[] table, boolean[] accepting) {
+    this.table = table;
+    this.accepting = accepting;
+  }
+
+  int stateCount() {
+    return accepting.length;
+  }
+
+  /**
+   * Compiles a token spec.
+   *
+   * @throws IllegalArgumentException if the spec is invalid or too complex
+   */
+  static TokenDfa compile(String spec) {
+    Node root = new Parser(spec).parse();
+    Nfa nfa = new Nfa();
+    int accept = nfa.newState();
+    int start = root.build(nfa, accept);
+    return determinize(nfa, start, accept);
+  }
+
+  /** A fresh tokenizer; tokenizers hold state, one per thread. */
+  Tokenizer newTokenizer() {
+    return new DfaTokenizer();
+  }
+
+  // ---- spec parsing -------------------------------------------------------
+
+  /** A node of the parsed spec, built into NFA states. */
+  private interface Node {
+    /**
+     * Adds states matching this node then going to next.
+     *
+     * @return the entry state
+     */
+    int build(Nfa nfa, int next);
+  }
+
+  /** One byte out of a set. */
+  private static class ByteSet implements Node {
+    final BitSet bytes;
+
+    ByteSet(BitSet bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int build(Nfa nfa, int next) {
+      int s = nfa.newState();
+      nfa.byteSets.set(s, bytes);
+      nfa.target[s] = next;
+      return s;
+    }
+  }
+
+  private static class Concat implements Node {
+    final List<Node> items;
+
+    Concat(List<Node> items) {
+      this.items = items;
+    }
+
+    @Override
+    public int build(Nfa nfa, int next) {
+      for (int i = items.size() - 1; i >= 0; i--) {
+        next = items.get(i).build(nfa, next);
+      }
+      return next;
+    }
+  }
+
+  private static class Alternation implements Node {
+    final List<Node> choices;
+
+    Alternation(List<Node> choices) {
+      this.choices = choices;
+    }
+
+    @Override
+    public int build(Nfa nfa, int next) {
+      int s = nfa.newState();
+      for (Node choice : choices) {
+        nfa.epsilon(s, choice.build(nfa, next));
+      }
+      return s;
+    }
+  }
+
+  /** min to max repetitions, max < 0 for unbounded. */
+  private static class Repeat implements Node {
+    final Node item;
+    final int min;
+    final int max;
+
+    Repeat(Node item, int min, int max) {
+      this.item = item;
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    public int build(Nfa nfa, int next) {
+      int s = next;
+      if (max < 0) {
+        // loop: item then back, or leave
+        int loop = nfa.newState();
+        nfa.epsilon(loop, next);
+        nfa.epsilon(loop, item.build(nfa, loop));
+        s = loop;
+      } else {
+        for (int i = min; i < max; i++) {
+          int optional = nfa.newState();
+          nfa.epsilon(optional, next);
+          nfa.epsilon(optional, item.build(nfa, s));
+          s = optional;
+        }
+      }
+      for (int i = 0; i < min; i++) {
+        s = item.build(nfa, s);
+      }
+      return s;
+    }
+  }
+
+  /** Recursive descent over the spec. */
+  private static class Parser {
+    private final String spec;
+    private int pos;
+
+    Parser(String spec) {
+      this.spec = spec;
+    }
+
+    Node parse() {
+      if (spec.isEmpty()) {
+        throw new IllegalArgumentException("Empty token spec");
+      }
+      Node node = alternation();
+      if (pos < spec.length()) {
+        throw error("Unexpected '" + spec.charAt(pos) + "'");
+      }
+      return node;
+    }
+
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at " + pos + " in token spec: " + spec);
+    }
+
+    private boolean more() {
+      return pos < spec.length();
+    }
+
+    private char peek() {
+      return spec.charAt(pos);
+    }
+
+    private Node alternation() {
+      List<Node> choices = new ArrayList<>();
+      choices.add(concat());
+      while (more() && peek() == '|') {
+        pos++;
+        choices.add(concat());
+      }
+      return choices.size() == 1 ? choices.get(0) : new Alternation(choices);
+    }
+
+    private Node concat() {
+      List<Node> items = new ArrayList<>();
+      while (more() && peek() != '|' && peek() != ')') {
+        items.add(repeat());
+      }
+      return items.size() == 1 ? items.get(0) : new Concat(items);
+    }
+
+    private Node repeat() {
+      Node node = atom();
+      while (more()) {
+        char c = peek();
+        if (c == '*') {
+          node = new Repeat(node, 0, -1);
+        } else if (c == '+') {
+          node = new Repeat(node, 1, -1);
+        } else if (c == '?') {
+          node = new Repeat(node, 0, 1);
+        } else if (c == '{') {
+          pos++;
+          int min = number();
+          int max = min;
+          if (more() && peek() == ',') {
+            pos++;
+            max = more() && peek() == '}' ? -1 : number();
+          }
+          if (!more() || peek() != '}' || max >= 0 && max < min) {
+            throw error("Invalid repetition");
+          }
+          node = new Repeat(node, min, max);
+        } else {
+          break;
+        }
+        pos++;
+      }
+      return node;
+    }
+
+    private int number() {
+      int start = pos;
+      while (more() && peek() >= '0' && peek() <= '9') {
+        pos++;
+      }
+      if (pos == start || pos - start > 3) {
+        throw error("Expected a repetition count up to 999");
+      }
+      return Integer.parseInt(spec.substring(start, pos));
+    }
+
+    private Node atom() {
+      char c = peek();
+      pos++;
+      switch (c) {
+      case '(':
+        Node node = alternation();
+        if (!more() || peek() != ')') {
+          throw error("Missing ')'");
+        }
+        pos++;
+        return node;
+      case '[':
+        return new ByteSet(byteClass());
+      case '.':
+        BitSet any = new BitSet(256);
+        any.set(0, 256);
+        any.clear('\n');
+        return new ByteSet(any);
+      case '\\':
+        return new ByteSet(escape());
+      case '*':
+      case '+':
+      case '?':
+      case '{':
+      case ')':
+        throw error("Unexpected '" + c + "'");
+      default:
+        // a literal character, possibly several UTF-8 bytes
+        int cp = spec.codePointAt(pos - 1);
+        pos += Character.charCount(cp) - 1;
+        byte[] utf8 = new String(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8);
+        List<Node> bytes = new ArrayList<>();
+        for (byte b : utf8) {
+          bytes.add(new ByteSet(single(b & 0xFF)));
+        }
+        return bytes.size() == 1 ? bytes.get(0) : new Concat(bytes);
+      }
+    }
+
+    /** After '[', up to and including ']'. */
+    private BitSet byteClass() {
+      BitSet set = new BitSet(256);
+      boolean negated = more() && peek() == '^';
+      if (negated) {
+        pos++;
+      }
+      boolean first = true;
+      while (more() && (peek() != ']' || first)) {
+        first = false;
+        char c = peek();
+        pos++;
+        if (c == '\\') {
+          BitSet escaped = escape();
+          if (escaped.cardinality() > 1) {
+            set.or(escaped);
+            continue;
+          }
+          c = (char) escaped.nextSetBit(0);
+        }
+        int last = c;
+        if (more() && peek() == '-' && pos + 1 < spec.length() && spec.charAt(pos + 1) != ']') {
+          pos++;
+          last = peek();
+          pos++;
+          if (last == '\\') {
+            BitSet escaped = escape();
+            if (escaped.cardinality() > 1) {
+              throw error("Invalid class range");
+            }
+            last = escaped.nextSetBit(0);
+          }
+        }
+        if (c > 0x7F || last > 0x7F || last < c) {
+          throw error("Invalid class member (ASCII only)");
+        }
+        set.set(c, last + 1);
+      }
+      if (!more()) {
+        throw error("Missing ']'");
+      }
+      pos++;
+      if (negated) {
+        set.flip(0, 256);
+      }
+      return set;
+    }
+
+    /** After '\'. */
+    private BitSet escape() {
+      if (!more()) {
+        throw error("Dangling '\\'");
+      }
+      char c = peek();
+      pos++;
+      BitSet set = new BitSet(256);
+      switch (c) {
+      case 'd':
+      case 'D':
+        set.set('0', '9' + 1);
+        break;
+      case 'w':
+      case 'W':
+        set.set('0', '9' + 1);
+        set.set('a', 'z' + 1);
+        set.set('A', 'Z' + 1);
+        set.set('_');
+        break;
+      case 's':
+      case 'S':
+        for (int b = 0; b < 128; b++) {
+          if (Character.isWhitespace(b)) {
+            set.set(b);
+          }
+        }
+        break;
+      case 't':
+        return single('\t');
+      case 'n':
+        return single('\n');
+      case 'r':
+        return single('\r');
+      case 'x':
+        if (pos + 2 > spec.length()) {
+          throw error("Expected two hex digits");
+        }
+        try {
+          int b = Integer.parseInt(spec.substring(pos, pos + 2), 16);
+          pos += 2;
+          return single(b);
+        } catch (NumberFormatException e) {
+          throw error("Expected two hex digits");
+        }
+      default:
+        if (Character.isLetterOrDigit(c) || c > 0x7F) {
+          throw error("Unknown escape '\\" + c + "'");
+        }
+        return single(c);
+      }
+      if (Character.isUpperCase(c)) {
+        set.flip(0, 256);
+      }
+      return set;
+    }
+
+    private static BitSet single(int b) {
+      BitSet set = new BitSet(256);
+      set.set(b);
+      return set;
+    }
+  }
+
+  // ---- automata -----------------------------------------------------------
+
+  /**
+   * Thompson NFA: each state either consumes one byte of its set and goes to
+   * target, or has epsilon transitions only.
+   */
+  private static class Nfa {
+    int size;
+    List<BitSet> byteSets = new ArrayList<>();
+    int[] target = new int[16];
+    List<int[]> epsilons = new ArrayList<>();
+
+    int newState() {
+      if (size == target.length) {
+        target = Arrays.copyOf(target, 2 * size);
+      }
+      target[size] = -1;
+      byteSets.add(null);
+      epsilons.add(new int[0]);
+      return size++;
+    }
+
+    void epsilon(int from, int to) {
+      int[] e = epsilons.get(from);
+      e = Arrays.copyOf(e, e.length + 1);
+      e[e.length - 1] = to;
+      epsilons.set(from, e);
+    }
+
+    /** Adds s and the states reachable from it by epsilon transitions. */
+    void closure(int s, BitSet set) {
+      if (set.get(s)) {
+        return;
+      }
+      set.set(s);
+      for (int t : epsilons.get(s)) {
+        closure(t, set);
+      }
+    }
+  }
+
+  /** Subset construction, on byte classes, expanded into a flat table. */
+  private static TokenDfa determinize(Nfa nfa, int start, int accept) {
+    // bytes that no set tells apart share a class
+    int[] classOf = new int[256];
+    List<BitSet> sets = new ArrayList<>();
+    for (BitSet set : nfa.byteSets) {
+      if (set != null) {
+        sets.add(set);
+      }
+    }
+    Map<List<Boolean>, Integer> signatures = new HashMap<>();
+    int[] representative = new int[256];
+    for (int b = 0; b < 256; b++) {
+      List<Boolean> signature = new ArrayList<>(sets.size());
+      for (BitSet set : sets) {
+        signature.add(set.get(b));
+      }
+      Integer c = signatures.get(signature);
+      if (c == null) {
+        c = signatures.size();
+        signatures.put(signature, c);
+        representative[c] = b;
+      }
+      classOf[b] = c;
+    }
+    int classes = signatures.size();
+
+    List<BitSet> states = new ArrayList<>();
+    Map<BitSet, Integer> ids = new HashMap<>();
+    states.add(new BitSet()); // DEAD
+    ids.put(states.get(DEAD), DEAD);
+    BitSet initial = new BitSet();
+    nfa.closure(start, initial);
+    states.add(initial);
+    ids.put(initial, START);
+    List<int[]> transitions = new ArrayList<>();
+    for (int d = 0; d < states.size(); d++) {
+      BitSet current = states.get(d);
+      int[] next = new int[classes];
+      for (int c = 0; c < classes && d != DEAD; c++) {
+        int b = representative[c];
+        BitSet target = new BitSet();
+        for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+          BitSet set = nfa.byteSets.get(s);
+          if (set != null && set.get(b)) {
+            nfa.closure(nfa.target[s], target);
+          }
+        }
+        Integer id = ids.get(target);
+        if (id == null) {
+          if (states.size() == MAX_STATES) {
+            throw new IllegalArgumentException("Token spec too complex (over " + MAX_STATES + " DFA states)");
+          }
+          id = states.size();
+          states.add(target);
+          ids.put(target, id);
+        }
+        next[c] = id;
+      }
+      transitions.add(next);
+    }
+
+    int[] table = new int[states.size() << 8];
+    boolean[] accepting = new boolean[states.size()];
+    for (int d = 0; d < states.size(); d++) {
+      accepting[d] = d != START && states.get(d).get(accept); // tokens are not empty
+      for (int b = 0; b < 256; b++) {
+        table[d << 8 | b] = transitions.get(d)[classOf[b]];
+      }
+    }
+    return new TokenDfa(table, accepting);
+  }
+
+  // ---- tokenizing ---------------------------------------------------------
+
+  /**
+   * Runs the DFA over a stream, fed by blocks like Utf8Tokenizer. When a longer
+   * attempt fails, the scan resumes right after the last accepted token (or one
+   * byte after the start of the attempt when nothing was accepted), so the
+   * bytes of the attempt are kept when it crosses the end of a block.
+   *
+   * Rescans are bounded by remembering the failed (state, position) pairs of
+   * each attempt (see fail()): a rescan reaching one stops there, so each pair
+   * is scanned a bounded number of times and tokenizing stays linear in the
+   * input ("a*b" over a long run of 'a' would otherwise be quadratic).
+   */
+  private class DfaTokenizer implements Tokenizer {
+    private Consumer<String> sink;
+    private byte[] token = new byte[64];
+    private int length; // bytes of the attempt kept in token
+    private long start; // position of token[0] in the input
+    private int state = START;
+    private int accepted; // length of the longest accepted prefix, 0 if none
+    private long words;
+    /** Failed pairs, as position * stateCount() + state. */
+    private final Set<Long> failed = new HashSet<>();
+    private long failedLimit = -1; // highest position in failed
+
+    @Override
+    public long tokenize(InputStream in, Consumer<String> words) throws IOException {
+      sink = words;
+      this.words = 0;
+      byte[] buf = new byte[Utf8Tokenizer.BLOCK_SIZE];
+      long position = 0;
+      int read;
+      while ((read = in.read(buf)) > 0) {
+        feed(buf, 0, read, position);
+        position += read;
+      }
+      finish();
+      return this.words;
+    }
+
+    /**
+     * Tokenizes buf[from, to), the following bytes come with the next call.
+     *
+     * @param position position of buf[from] in the input
+     */
+    void feed(byte[] buf, int from, int to, long position) {
+      // Tokens within buf are emitted from it; token only keeps an attempt
+      // carried over from the previous block, or to be rescanned. The state is
+      // kept in locals in the loop, and saved around backtrack().
+      int[] table = TokenDfa.this.table;
+      boolean[] accepting = TokenDfa.this.accepting;
+      int state = this.state;
+      int carried = this.length;
+      int accepted = this.accepted;
+      int begin = carried > 0 ? from : -1; // start of the attempt in buf
+      long offset = position - from; // position of buf[i] is offset + i
+      for (int i = from; i < to; i++) {
+        int next = table[state << 8 | (buf[i] & 0xFF)];
+        if (next != DEAD && offset + i <= failedLimit && failed.contains((offset + i) * accepting.length + state)) {
+          next = DEAD; // no token gets longer from here
+        }
+        if (next != DEAD) {
+          if (begin < 0) {
+            begin = i;
+          }
+          state = next;
+          if (accepting[next]) {
+            accepted = carried + i + 1 - begin;
+          }
+        } else if (begin >= 0) {
+          if (carried == 0 && accepted == i - begin) {
+            // the usual case, the whole attempt is the token: nothing to rescan
+            emit(buf, begin, accepted);
+            accepted = 0;
+            state = START;
+            begin = -1;
+          } else {
+            keep(buf, begin, i, offset + begin);
+            this.accepted = accepted;
+            backtrack();
+            carried = this.length;
+            accepted = this.accepted;
+            state = this.state;
+            begin = carried > 0 ? i : -1;
+          }
+          i--; // again, from the new state
+        }
+        // else: the byte starts no token
+      }
+      if (begin >= 0) {
+        keep(buf, begin, to, offset + begin);
+      }
+      this.state = state;
+      this.accepted = accepted;
+    }
+
+    /** Ends the last tokens, at the end of the input. */
+    void finish() {
+      while (length > 0) {
+        backtrack();
+      }
+    }
+
+    /**
+     * Emits the longest accepted token of the current attempt, if any, then
+     * rescans the bytes after it (after the first byte if none was accepted).
+     */
+    private void backtrack() {
+      int resume = accepted > 0 ? accepted : 1;
+      if (accepted > 0) {
+        emit(token, 0, accepted);
+      }
+      fail();
+      int end = length;
+      length = 0;
+      accepted = 0;
+      state = START;
+      if (resume < end) {
+        feed(Arrays.copyOfRange(token, resume, end), 0, end - resume, start + resume);
+      }
+    }
+
+    /**
+     * Remembers the pairs (state, position) that the current attempt went
+     * through after its longest accepted prefix: from any of them, the DFA dies
+     * (or the input ends) before accepting again.
+     */
+    private void fail() {
+      if (start > failedLimit) {
+        failed.clear(); // rescans never go back before the attempt
+      }
+      int s = START;
+      for (int j = 0; j <= length; j++) {
+        if (j >= accepted) {
+          failed.add((start + j) * accepting.length + s);
+        }
+        if (j < length) {
+          s = table[s << 8 | (token[j] & 0xFF)];
+        }
+      }
+      failedLimit = Math.max(failedLimit, start + length);
+    }
+
+    /**
+     * Appends buf[from, to) to the kept bytes of the attempt.
+     *
+     * @param position position of buf[from] in the input
+     */
+    private void keep(byte[] buf, int from, int to, long position) {
+      if (length == 0) {
+        start = position;
+      }
+      int n = to - from;
+      if (length + n > token.length) {
+        token = Arrays.copyOf(token, Math.max(2 * token.length, length + n));
+      }
+      System.arraycopy(buf, from, token, length, n);
+      length += n;
+    }
+
+    private void emit(byte[] buf, int from, int n) {
+      words++;
+      sink.accept(new String(buf, from, n, StandardCharsets.UTF_8));
+    }
+  }
+}
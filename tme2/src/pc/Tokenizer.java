@@ -0,0 +1,23 @@
+package pc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Splits a stream of bytes (typically a FileUtils.getRange) into cleaned words.
+ * CounterWorker uses a Scanner and WordFrequency.cleanWord when it is given no
+ * tokenizer.
+ */
+interface Tokenizer {
+
+  /**
+   * Reads the whole stream, passing each non empty word to the consumer.
+   *
+   * @param in    the bytes to tokenize, not closed
+   * @param words receives each word
+   * @return the number of words found
+   * @throws IOException if reading fails
+   */
+  long tokenize(InputStream in, Consumer<String> words) throws IOException;
+}
@@ -0,0 +1,131 @@
+package pc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A Unicode-aware tokenizer over UTF-8 bytes (used in "utf8" mode).
+ *
+ * Like Scanner + cleanWord, tokens are separated by whitespace and only their
+ * letters are kept, lowercased; but letters are any Unicode letters (accented,
+ * Cyrillic...) instead of [a-zA-Z] only. ASCII bytes, by far the most common,
+ * go through a lookup table; a multi-byte sequence is only decoded when a byte
+ * with its high bit set is seen. On ASCII input the words are the same as with
+ * cleanWord.
+ *
+ * The tokenizer is fed by blocks and keeps its state (current token, partial
+ * UTF-8 sequence) from one block to the next, so blocks can be cut anywhere.
+ */
+class Utf8Tokenizer implements Tokenizer {
+
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  private static final int WHITESPACE = -1;
+  private static final int SKIP = 0;
+
+  /**
+   * For each ASCII byte: WHITESPACE, SKIP (neither letter nor whitespace), or
+   * the lowercase letter to append.
+   */
+  private static final int[] ASCII = new int[128];
+  static {
+    for (int c = 0; c < 128; c++) {
+      if (Character.isWhitespace(c)) {
+        ASCII[c] = WHITESPACE;
+      } else if (c >= 'a' && c <= 'z') {
+        ASCII[c] = c;
+      } else if (c >= 'A' && c <= 'Z') {
+        ASCII[c] = c + ('a' - 'A');
+      } else {
+        ASCII[c] = SKIP;
+      }
+    }
+  }
+
+  private Consumer<String> sink;
+  private char[] token = new char[64];
+  private int length;
+  private int codePoint; // bits of the multi-byte sequence being decoded
+  private int needed; // continuation bytes still expected
+  private long words;
+
+  @Override
+  public long tokenize(InputStream in, Consumer<String> words) throws IOException {
+    sink = words;
+    this.words = 0;
+    byte[] buf = new byte[BLOCK_SIZE];
+    int read;
+    while ((read = in.read(buf)) > 0) {
+      feed(buf, 0, read);
+    }
+    finish();
+    return this.words;
+  }
+
+  /** Tokenizes buf[from, to), the following bytes come with the next call. */
+  void feed(byte[] buf, int from, int to) {
+    for (int i = from; i < to; i++) {
+      int b = buf[i];
+      if (needed > 0) {
+        if ((b & 0xC0) == 0x80) {
+          codePoint = (codePoint << 6) | (b & 0x3F);
+          if (--needed == 0) {
+            decoded(codePoint);
+          }
+          continue;
+        }
+        needed = 0; // truncated sequence, dropped; b is handled below
+      }
+      if (b >= 0) {
+        // ASCII fast path
+        int c = ASCII[b];
+        if (c > 0) {
+          if (length == token.length) {
+            token = Arrays.copyOf(token, 2 * length);
+          }
+          token[length++] = (char) c;
+        } else if (c == WHITESPACE) {
+          endToken();
+        }
+      } else if ((b & 0xE0) == 0xC0) {
+        codePoint = b & 0x1F;
+        needed = 1;
+      } else if ((b & 0xF0) == 0xE0) {
+        codePoint = b & 0x0F;
+        needed = 2;
+      } else if ((b & 0xF8) == 0xF0) {
+        codePoint = b & 0x07;
+        needed = 3;
+      }
+      // else: stray continuation or invalid byte, dropped
+    }
+  }
+
+  /** Ends the last token, at the end of the input. */
+  void finish() {
+    needed = 0;
+    endToken();
+  }
+
+  private void decoded(int cp) {
+    if (Character.isWhitespace(cp)) {
+      endToken();
+    } else if (Character.isLetter(cp)) {
+      cp = Character.toLowerCase(cp);
+      if (length + 2 > token.length) {
+        token = Arrays.copyOf(token, 2 * token.length);
+      }
+      length += Character.toChars(cp, token, length);
+    }
+  }
+
+  private void endToken() {
+    if (length > 0) {
+      words++;
+      sink.accept(new String(token, 0, length));
+      length = 0;
+    }
+  }
+}
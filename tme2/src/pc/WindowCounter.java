@@ -0,0 +1,199 @@
+package pc;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Word counts over a sliding window (used in "window" mode).
+ *
+ * The window is a ring of buckets, each counting the words added while it was
+ * current; rotate() expires the oldest bucket and starts a new one, so the
+ * window always covers the last numBuckets - 1 full buckets plus the current
+ * one. The counts of the whole window are kept in a Ranking, ordered by count
+ * at all times: adding a word increments it by one and expiring a bucket
+ * decrements each of its words once per occurrence, both in O(1). Each
+ * occurrence is thus counted and expired once, so expiry is O(1) amortized
+ * per word, and the top k of the window can be read at any time from the k
+ * first ranks.
+ *
+ * Not thread-safe.
+ */
+class WindowCounter {
+
+  private final ArrayDeque<Map<String, Integer>> buckets = new ArrayDeque<>();
+  private final int numBuckets;
+  private final Ranking ranking = new Ranking();
+  private Map<String, Integer> current = new HashMap<>();
+
+  WindowCounter(int numBuckets) {
+    if (numBuckets < 1) {
+      throw new IllegalArgumentException("At least one bucket is needed: " + numBuckets);
+    }
+    this.numBuckets = numBuckets;
+    buckets.add(current);
+  }
+
+  /** Counts one occurrence of word in the current bucket. */
+  void add(String word) {
+    current.merge(word, 1, Integer::sum);
+    ranking.increment(word);
+  }
+
+  /** Starts a new bucket, expiring the oldest one if the ring is full. */
+  void rotate() {
+    if (buckets.size() == numBuckets) {
+      for (Map.Entry<String, Integer> e : buckets.poll().entrySet()) {
+        for (int i = e.getValue(); i > 0; i--) {
+          ranking.decrement(e.getKey());
+        }
+      }
+    }
+    current = new HashMap<>();
+    buckets.add(current);
+  }
+
+  /** Number of words in the window. */
+  long totalWords() {
+    return ranking.totalWords;
+  }
+
+  /** Number of distinct words in the window. */
+  int size() {
+    return ranking.size;
+  }
+
+  /**
+   * The k most frequent words of the window by decreasing count, ties broken by
+   * alphabetical order as in WordFrequency.BY_FREQUENCY. Reads the k first
+   * ranks, plus the rest of the last tied group.
+   */
+  List<Map.Entry<String, Integer>> top(int k) {
+    List<Map.Entry<String, Integer>> top = new ArrayList<>();
+    if (k <= 0) {
+      return top;
+    }
+    int i = 0;
+    while (i < ranking.size && (i < k || ranking.entries[i].count == ranking.entries[k - 1].count)) {
+      Ranking.Entry e = ranking.entries[i++];
+      top.add(new SimpleImmutableEntry<>(e.word, e.count));
+    }
+    top.sort(WordFrequency.BY_FREQUENCY);
+    return top.subList(0, Math.min(k, top.size()));
+  }
+
+  /** A copy of the counts of the window. */
+  Map<String, Integer> snapshot() {
+    Map<String, Integer> map = new HashMap<>();
+    for (int i = 0; i < ranking.size; i++) {
+      map.put(ranking.entries[i].word, ranking.entries[i].count);
+    }
+    return map;
+  }
+
+  /**
+   * Words kept in an array sorted by decreasing count, where the words of equal
+   * count form a contiguous group whose first and last index are known. A word
+   * moves to the next group by swapping with the first (increment) or last
+   * (decrement) word of its own group, so the order is kept in O(1). Words
+   * reaching 0 are removed.
+   */
+  private static class Ranking {
+    private static class Entry {
+      final String word;
+      int count;
+      int index;
+
+      Entry(String word, int index) {
+        this.word = word;
+        this.index = index;
+      }
+    }
+
+    private final Map<String, Entry> byWord = new HashMap<>();
+    private Entry[] entries = new Entry[1024];
+    private int size;
+    private long totalWords;
+    // first and last index of the group of each count, -1 if empty
+    private int[] first = new int[64];
+    private int[] last = new int[64];
+
+    Ranking() {
+      Arrays.fill(first, -1);
+      Arrays.fill(last, -1);
+    }
+
+    void increment(String word) {
+      Entry e = byWord.get(word);
+      if (e == null) {
+        // new word, appended as a group of count 0 at the end
+        if (size == entries.length) {
+          entries = Arrays.copyOf(entries, 2 * size);
+        }
+        e = new Entry(word, size);
+        entries[size] = e;
+        first[0] = last[0] = size;
+        size++;
+        byWord.put(word, e);
+      }
+      int c = e.count;
+      if (c + 1 == first.length) {
+        int n = first.length;
+        first = Arrays.copyOf(first, 2 * n);
+        last = Arrays.copyOf(last, 2 * n);
+        Arrays.fill(first, n, 2 * n, -1);
+        Arrays.fill(last, n, 2 * n, -1);
+      }
+      int s = first[c];
+      swap(e.index, s);
+      if (last[c] == s) {
+        first[c] = last[c] = -1;
+      } else {
+        first[c] = s + 1;
+      }
+      if (first[c + 1] < 0) {
+        first[c + 1] = s;
+      }
+      last[c + 1] = s;
+      e.count = c + 1;
+      totalWords++;
+    }
+
+    void decrement(String word) {
+      Entry e = byWord.get(word);
+      int c = e.count;
+      int l = last[c];
+      swap(e.index, l);
+      if (first[c] == l) {
+        first[c] = last[c] = -1;
+      } else {
+        last[c] = l - 1;
+      }
+      e.count = c - 1;
+      totalWords--;
+      if (c == 1) {
+        // count 0: last of the array, since the group of 0 is always empty
+        entries[--size] = null;
+        byWord.remove(word);
+      } else {
+        if (last[c - 1] < 0) {
+          last[c - 1] = l;
+        }
+        first[c - 1] = l;
+      }
+    }
+
+    private void swap(int i, int j) {
+      Entry a = entries[i];
+      Entry b = entries[j];
+      entries[i] = b;
+      b.index = i;
+      entries[j] = a;
+      a.index = j;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package pc;
+
+import java.util.Arrays;
+
+/**
+ * A batch of cleaned words emitted by a {@link WordPublisher}.
+ *
+ * Batches are pooled and reused by the publisher: a batch is only valid during
+ * the onNext call that delivers it, subscribers that need the words later must
+ * copy them.
+ */
+public class WordBatch {
+  private final String[] words;
+  private int size;
+  private int pending; // subscribers that have not processed it yet, guarded by the publisher
+
+  WordBatch(int capacity) {
+    words = new String[capacity];
+  }
+
+  /** Number of words in this batch. */
+  public int size() {
+    return size;
+  }
+
+  /** The i-th word of this batch, 0 <= i < size(). */
+  public String get(int i) {
+    if (i >= size) {
+      throw new IndexOutOfBoundsException(i);
+    }
+    return words[i];
+  }
+
+  boolean isFull() {
+    return size == words.length;
+  }
+
+  void add(String word) {
+    words[size++] = word;
+  }
+
+  void clear() {
+    Arrays.fill(words, 0, size, null);
+    size = 0;
+  }
+
+  int getPending() {
+    return pending;
+  }
+
+  void setPending(int pending) {
+    this.pending = pending;
+  }
+}
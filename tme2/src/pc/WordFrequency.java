@@ -1,135 +1,933 @@
 package pc;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class WordFrequency {
 
-  private static class CounterWorker {
-    //TODO : au choix
-    //TODO : extends Thread {
-    //TODO : implements Runnable {
+  /**
+   * Counts the words of the byte range [start, end) of a file into its own
+   * local map.
+   */
+  private static class CounterWorker extends RangeWorker {
+    private final RangeSource source;
+    private final Map<String, Integer> map;
+    private final RunStats stats;
+    private final Tokenizer tokenizer;
+
+    public CounterWorker(File file, long start, long end, Map<String, Integer> map, RunStats stats) {
+      this(file, start, end, map, null, stats);
+    }
+
+    /** With a null tokenizer, words are read by a Scanner and cleanWord. */
+    public CounterWorker(File file, long start, long end, Map<String, Integer> map, Tokenizer tokenizer,
+        RunStats stats) {
+      this((s, e) -> FileUtils.getRange(file, s, e), start, end, map, tokenizer, stats);
+    }
+
+    public CounterWorker(RangeSource source, long start, long end, Map<String, Integer> map, Tokenizer tokenizer,
+        RunStats stats) {
+      super(start, end, stats);
+      this.source = source;
+      this.map = map;
+      this.tokenizer = tokenizer;
+      this.stats = stats;
+    }
+
+    @Override
+    void work() throws IOException {
+      long time = System.nanoTime();
+      long allocated = stats.isEnabled() ? RunStats.currentThreadAllocatedBytes() : -1;
+      try (InputStream in = source.open(start, end)) {
+        workerStats.openNanos = System.nanoTime() - time;
+        if (tokenizer == null) {
+          totalWords = countWords(new Scanner(in), map, COMPUTE, stats, workerStats);
+        } else {
+          totalWords = tokenizer.tokenize(in, word -> COMPUTE.add(map, word));
+        }
+      } finally {
+        if (allocated >= 0) {
+          workerStats.allocatedBytes = RunStats.currentThreadAllocatedBytes() - allocated;
+        }
+      }
+    }
+
+    public Map<String, Integer> getMap() {
+      return map;
+    }
+
+    public long getTotalWords() {
+      return totalWords;
+    }
+  }
+
+  /**
+   * Counts the words published by a WordPublisher, requesting one batch for each
+   * batch it processes.
+   */
+  private static class CountingSubscriber implements Flow.Subscriber<WordBatch> {
+    private final Map<String, Integer> map;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private Flow.Subscription subscription;
+    private long totalWords;
+    private Throwable error;
+
+    public CountingSubscriber(Map<String, Integer> map) {
+      this.map = map;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(WordPublisher.DEFAULT_POOL_SIZE);
+    }
+
+    @Override
+    public void onNext(WordBatch batch) {
+      for (int i = 0; i < batch.size(); i++) {
+        COMPUTE.add(map, batch.get(i));
+      }
+      totalWords += batch.size();
+      subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+      finished.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+      finished.countDown();
+    }
+
+    /** Waits for the end of the stream, then returns the number of words. */
+    public long await() throws IOException {
+      try {
+        finished.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the publisher", e);
+      }
+      if (error != null) {
+        throw new IOException("Publisher failed", error);
+      }
+      return totalWords;
+    }
+  }
+
+  /** Opens the bytes [start, end) of the input, e.g. with FileUtils.getRange. */
+  interface RangeSource {
+    InputStream open(long start, long end) throws IOException;
+  }
+
+  /**
+   * Partitions the file, counts each range in its own CounterWorker thread with
+   * a fresh local map, then merges the local maps into map.
+   *
+   * @param tokenizers gives one tokenizer per worker, or null to use a Scanner
+   * @return the number of words counted
+   */
+  private static long shard(File file, int numThreads, Supplier<Map<String, Integer>> newMap,
+      Supplier<Tokenizer> tokenizers, Map<String, Integer> map, RunStats stats) throws IOException {
+    long time = System.nanoTime();
+    long[] parts = FileUtils.partition(file, numThreads);
+    stats.phase("partition", System.nanoTime() - time);
+    return shard((s, e) -> FileUtils.getRange(file, s, e), parts, newMap, tokenizers, map, stats);
+  }
+
+  /**
+   * Counts each range [parts[i], parts[i+1]) of the source in its own
+   * CounterWorker thread with a fresh local map, then merges the local maps
+   * into map.
+   */
+  private static long shard(RangeSource source, long[] parts, Supplier<Map<String, Integer>> newMap,
+      Supplier<Tokenizer> tokenizers, Map<String, Integer> map, RunStats stats) throws IOException {
+    // one thread per non empty partition element, all joined
+    List<CounterWorker> workers = RangeWorker.runAll(parts, (start, end) -> new CounterWorker(source, start, end,
+        newMap.get(), tokenizers == null ? null : tokenizers.get(), stats));
 
-    /* TODO : ajouter les attributs */
-    /* TODO : Constructeur */
-    
-    /* TODO : run() */
-    
-    /* TODO : getters pour les résultats */
+    // collect and merge results
+    long time = System.nanoTime();
+    long totalWords = 0;
+    for (CounterWorker worker : workers) {
+      stats.phase("open", worker.workerStats.openNanos);
+      totalWords += worker.getTotalWords();
+      mergeInto(map, worker.getMap());
+      if (worker.getMap() instanceof OffHeapMap) {
+        ((OffHeapMap) worker.getMap()).release();
+      }
+    }
+    stats.phase("merge", System.nanoTime() - time);
+    return totalWords;
+  }
+
+  /** How a word is added to a map (compute or get/put). */
+  interface WordCounter {
+    void add(Map<String, Integer> map, String word);
   }
 
-  /* TODO : merge two maps
+  static final WordCounter COMPUTE = (map, word) -> map.compute(word, (w, c) -> c == null ? 1 : c + 1);
+
+  static final WordCounter GET_PUT = (map, word) -> {
+    Integer c = map.get(word);
+    map.put(word, c == null ? 1 : c + 1);
+  };
+
+  /**
+   * Reads all tokens of the scanner, cleans them and counts the non empty ones
+   * into the map. When stats are enabled, the time spent tokenizing and counting
+   * is accumulated in workerStats (and in the tokenize/count phases of stats).
+   *
+   * @return the number of words counted
+   * @throws IOException if the scanner stopped on a read error (which Scanner
+   *     otherwise reports as a plain end of input)
+   */
+  static long countWords(Scanner scanner, Map<String, Integer> map, WordCounter counter, RunStats stats,
+      RunStats.WorkerStats workerStats) throws IOException {
+    long totalWords = 0;
+    if (!stats.isEnabled()) {
+      while (scanner.hasNext()) {
+        String word = cleanWord(scanner.next());
+        if (!word.isEmpty()) {
+          totalWords++;
+          counter.add(map, word);
+        }
+      }
+    } else {
+      long tokenize = 0;
+      long count = 0;
+      long t0 = System.nanoTime();
+      while (scanner.hasNext()) {
+        String word = cleanWord(scanner.next());
+        long t1 = System.nanoTime();
+        if (!word.isEmpty()) {
+          totalWords++;
+          counter.add(map, word);
+        }
+        long t2 = System.nanoTime();
+        tokenize += t1 - t0;
+        count += t2 - t1;
+        t0 = t2;
+      }
+      workerStats.tokenizeNanos += tokenize;
+      workerStats.countNanos += count;
+      stats.phase("tokenize", tokenize);
+      stats.phase("count", count);
+    }
+    if (scanner.ioException() != null) {
+      throw scanner.ioException();
+    }
+    workerStats.words += totalWords;
+    return totalWords;
+  }
+
+  /** Counts a whole file in the calling thread, recording it as one worker. */
+  private static long countFile(File file, Map<String, Integer> map, WordCounter counter, RunStats stats)
+      throws IOException {
+    RunStats.WorkerStats workerStats = stats.newWorker(0, file.length());
+    long time = System.nanoTime();
+    long allocated = stats.isEnabled() ? RunStats.currentThreadAllocatedBytes() : -1;
+    long totalWords;
+    try (Scanner scanner = new Scanner(file)) {
+      workerStats.openNanos = System.nanoTime() - time;
+      stats.phase("open", workerStats.openNanos);
+      totalWords = countWords(scanner, map, counter, stats, workerStats);
+    }
+    workerStats.wallNanos = System.nanoTime() - time;
+    if (allocated >= 0) {
+      workerStats.allocatedBytes = RunStats.currentThreadAllocatedBytes() - allocated;
+    }
+    return totalWords;
+  }
+
+  /** Number of buckets of the ring of a WindowCounter. */
+  static final int WINDOW_BUCKETS = 10;
+
+  /**
+   * Counts the lines of in over a sliding window, printing its top words each
+   * time the oldest bucket expires.
+   *
+   * @param window the window length: a number of lines, or of seconds or
+   *               minutes with an "s" or "m" suffix, split in WINDOW_BUCKETS
+   *               buckets
+   * @return the counter, holding the last window
+   */
+  private static WindowCounter countWindow(InputStream in, String window, RunStats stats) throws IOException {
+    char unit = window.charAt(window.length() - 1);
+    boolean timed = unit == 's' || unit == 'm';
+    long length = Long.parseLong(timed ? window.substring(0, window.length() - 1) : window);
+    if (unit == 'm') {
+      length *= 60;
+    }
+    // bucket span in lines, or in milliseconds
+    long span = Math.max(1, (timed ? length * 1000 : length) / WINDOW_BUCKETS);
+    String label = timed ? length + " s" : length + " lines";
+
+    long time = System.nanoTime();
+    WindowCounter counter = new WindowCounter(WINDOW_BUCKETS);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    long lines = 0;
+    long bucketEnd = timed ? System.currentTimeMillis() + span : span;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (timed) {
+        // time buckets rotate when a line arrives, once per elapsed span
+        long now = System.currentTimeMillis();
+        boolean rotated = false;
+        for (int i = 0; now >= bucketEnd && i < WINDOW_BUCKETS; i++) {
+          counter.rotate();
+          bucketEnd += span;
+          rotated = true;
+        }
+        if (now >= bucketEnd) {
+          bucketEnd = now + span; // idle for a whole window
+        }
+        if (rotated) {
+          printWindow(counter, label);
+        }
+      }
+      for (String token : line.split("\\s+")) {
+        String word = cleanWord(token);
+        if (!word.isEmpty()) {
+          counter.add(word);
+        }
+      }
+      if (!timed && ++lines == bucketEnd) {
+        counter.rotate();
+        bucketEnd += span;
+        printWindow(counter, label);
+      }
+    }
+    stats.phase("count", System.nanoTime() - time);
+    return counter;
+  }
+
+  private static void printWindow(WindowCounter counter, String label) {
+    StringBuilder sb = new StringBuilder("Window (last " + label + "): " + counter.totalWords() + " words,");
+    for (Map.Entry<String, Integer> entry : counter.top(5)) {
+      sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+    }
+    System.out.println(sb);
+  }
+
+  /**
+   * Merges the counts of b into a.
+   *
+   * @param a the target map, updated in place
+   * @param b the map whose counts are added to a
+   * @return a, for chaining
    */
   public static Map<String, Integer> mergeInto(Map<String, Integer> a, Map<String, Integer> b) {
-    // TODO
-    return null;
+    for (Map.Entry<String, Integer> e : b.entrySet()) {
+      a.merge(e.getKey(), e.getValue(), Integer::sum);
+    }
+    return a;
   }
 
+  /** The modes giving the exact count of all words cleaned by cleanWord. */
+  private static final Set<String> WORD_MODES = Set.of("hash", "hash2", "tree", "range", "partition", "shard",
+      "aligned", "stream", "flow", "pipe", "skiplist", "sortagg", "multiproc", "offheap", "trie", "gzip");
+
+  /** The modes reading the input through FileUtils range readers. */
+  private static final Set<String> PARTITIONED_MODES = Set.of("range", "partition", "shard", "aligned", "stream",
+      "flow", "index", "watch", "skiplist", "multi", "field", "sortagg", "tfidf", "offheap", "trie", "utf8", "gzip");
+
   public static void main(String[] args) throws IOException {
-    String filename = args.length > 0 ? args[0] : "data/WarAndPeace.txt";
-    String mode = args.length > 1 ? args[1] : "hash";
-    int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+    // Options (--stats, --cache[=dir], --prefix=p, --window=w, --index=file,
+    // --watch=file, --budget=ms, --mphf=file, --dump=file, --sinks=a,b,...,
+    // --field=n, --delim=c, --tokens=spec, --docsep=regex, --top=n,
+    // --tfidf=file, --progress[=ms], --timeout=ms) may appear anywhere, other
+    // arguments are positional
+    boolean statsEnabled = false;
+    Path cacheDir = null;
+    String prefix = null;
+    String window = "10000";
+    String indexFile = null;
+    String watchFile = null;
+    long budget = 2000;
+    String mphfFile = null;
+    String dumpFile = null;
+    String sinkNames = "counts,unique,longest";
+    int fieldColumn = 1;
+    String delim = null;
+    String tokenSpec = null;
+    String docSeparator = "^\\s*$"; // blank lines: documents are paragraphs
+    int top = 10;
+    String tfidfFile = null;
+    long progressMs = 0;
+    long timeoutMs = 0;
+    List<String> positional = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.equals("--stats")) {
+        statsEnabled = true;
+      } else if (arg.equals("--cache")) {
+        cacheDir = ResultCache.defaultDir();
+      } else if (arg.startsWith("--cache=")) {
+        cacheDir = Paths.get(arg.substring("--cache=".length()));
+      } else if (arg.startsWith("--prefix=")) {
+        prefix = arg.substring("--prefix=".length()).toLowerCase();
+      } else if (arg.startsWith("--window=")) {
+        window = arg.substring("--window=".length());
+      } else if (arg.startsWith("--index=")) {
+        indexFile = arg.substring("--index=".length());
+      } else if (arg.startsWith("--watch=")) {
+        watchFile = arg.substring("--watch=".length());
+      } else if (arg.startsWith("--budget=")) {
+        budget = Long.parseLong(arg.substring("--budget=".length()));
+      } else if (arg.startsWith("--mphf=")) {
+        mphfFile = arg.substring("--mphf=".length());
+      } else if (arg.startsWith("--dump=")) {
+        dumpFile = arg.substring("--dump=".length());
+      } else if (arg.startsWith("--sinks=")) {
+        sinkNames = arg.substring("--sinks=".length());
+        for (String name : sinkNames.split(",")) {
+          if (!WordSinks.NAMES.contains(name.trim())) {
+            System.err.println("Unknown sink '" + name.trim() + "' in --sinks, expected a comma separated list of: "
+                + String.join(", ", WordSinks.NAMES) + ".");
+            System.exit(1);
+          }
+        }
+      } else if (arg.startsWith("--field=")) {
+        fieldColumn = Integer.parseInt(arg.substring("--field=".length()));
+      } else if (arg.startsWith("--delim=")) {
+        delim = arg.substring("--delim=".length());
+      } else if (arg.startsWith("--tokens=")) {
+        tokenSpec = arg.substring("--tokens=".length());
+      } else if (arg.startsWith("--docsep=")) {
+        docSeparator = arg.substring("--docsep=".length());
+      } else if (arg.startsWith("--top=")) {
+        top = Integer.parseInt(arg.substring("--top=".length()));
+      } else if (arg.startsWith("--tfidf=")) {
+        tfidfFile = arg.substring("--tfidf=".length());
+      } else if (arg.equals("--progress")) {
+        progressMs = 1000;
+      } else if (arg.startsWith("--progress=")) {
+        progressMs = Long.parseLong(arg.substring("--progress=".length()));
+      } else if (arg.startsWith("--timeout=")) {
+        timeoutMs = Long.parseLong(arg.substring("--timeout=".length()));
+      } else {
+        positional.add(arg);
+      }
+    }
+    String filename = positional.size() > 0 ? positional.get(0) : "data/WarAndPeace.txt";
+    boolean stdin = filename.equals("-");
+    String mode = positional.size() > 1 ? positional.get(1) : stdin ? "pipe" : "hash";
+    boolean autoThreads = mode.equals("auto") || positional.size() > 2 && positional.get(2).equals("auto");
+    int numThreads = positional.size() > 2 && !autoThreads ? Integer.parseInt(positional.get(2)) : 4;
 
     File file = new File(filename);
-    if (!file.exists() || !file.canRead()) {
+    if (stdin && mode.equals("auto")) {
+      mode = "pipe";
+    }
+    if (stdin) {
+      if (!mode.equals("pipe") && !mode.equals("window")) {
+        System.err.println("Standard input can only be read in pipe or window mode.");
+        System.exit(1);
+      }
+      System.out.println("Preparing to parse standard input (mode=" + mode + ", N=" + (autoThreads ? "auto" : numThreads)
+          + ")");
+    } else if (!file.exists() || !file.canRead()) {
       System.err.println("Could not open '" + filename + "'. Please provide a readable text file.");
       System.exit(2);
+    } else {
+      System.out.println("Preparing to parse " + filename + " (mode=" + mode + ", N="
+          + (autoThreads ? "auto" : numThreads) + "), containing " + file.length() + " bytes");
     }
-
     long fileSize = file.length();
-    System.out.println("Preparing to parse " + filename + " (mode=" + mode + ", N=" + numThreads + "), containing "
-        + fileSize + " bytes");
 
+    RunStats stats = new RunStats(statsEnabled);
+    if (autoThreads) {
+      // Measure, then pick the mode and/or number of threads (see AutoTuner)
+      AutoTuner.Plan plan = stdin ? AutoTuner.planStdin() : AutoTuner.plan(file, stats);
+      System.out.println("Auto plan: " + plan);
+      if (mode.equals("auto")) {
+        mode = plan.mode;
+      }
+      numThreads = plan.threads;
+      System.out.println("To pin this plan: " + filename + " " + mode + " " + numThreads);
+    }
+    Supplier<Tokenizer> tokenizers = null;
+    if (tokenSpec != null) {
+      // Compile the token spec once, one tokenizer per worker (see TokenDfa)
+      if (!Arrays.asList("shard", "aligned", "offheap", "trie", "gzip", "multi").contains(mode)) {
+        System.err.println("--tokens is only supported in shard, aligned, offheap, trie, gzip and multi modes.");
+        System.exit(1);
+      }
+      try {
+        TokenDfa dfa = TokenDfa.compile(tokenSpec);
+        tokenizers = dfa::newTokenizer;
+        System.out.println("Token spec compiled to " + dfa.stateCount() + " DFA states");
+      } catch (IllegalArgumentException e) {
+        System.err.println(e.getMessage());
+        System.exit(1);
+      }
+    }
+    // the cache only holds exact tables of the whole vocabulary, of cleaned
+    // words or of Unicode words (utf8 mode): other modes, token specs and side
+    // outputs (written by index, tfidf and --mphf) bypass it. Modes decode the
+    // input differently (Scanner with the default charset, UTF-8 readers, raw
+    // bytes), so entries are only shared by runs of the same mode and charset.
+    // A run failing on a read error throws before store.
+    String cacheKind = WORD_MODES.contains(mode) || mode.equals("utf8")
+        ? mode + "|" + Charset.defaultCharset().name() : null;
+    ResultCache cache = cacheDir == null || stdin || cacheKind == null || tokenSpec != null || mphfFile != null
+        ? null : new ResultCache(cacheDir, ResultCache.DEFAULT_MAX_BYTES);
     long startTime = System.nanoTime();
 
-    if (mode.equals("hash")) {
-      // Sequential full-file processing with hash map
-      long totalWords = 0;
-      Map<String, Integer> map = new HashMap<>();
-      try (Scanner scanner = new Scanner(file)) {
-        while (scanner.hasNext()) {
-          String word = cleanWord(scanner.next());
-          if (!word.isEmpty()) {
-            totalWords++;
-            map.compute(word, (w, c) -> c == null ? 1 : c + 1);
-          }
-        }
+    long totalWords = 0;
+    Map<String, Integer> map = new HashMap<>();
+    ResultCache.Result cached = null;
+    if (cache != null) {
+      long time = System.nanoTime();
+      cached = cache.lookup(file, cacheKind);
+      stats.phase("cache", System.nanoTime() - time);
+    }
+
+    Progress progress = null;
+    if (cached == null && (progressMs > 0 || timeoutMs > 0)) {
+      // Range readers feed the progress; Ctrl-C or the timeout cancel the run,
+      // whose partial results are printed as usual
+      if (!PARTITIONED_MODES.contains(mode)) {
+        System.err.println("--progress and --timeout are only supported in modes reading ranges: "
+            + String.join(", ", new TreeSet<>(PARTITIONED_MODES)) + ".");
+        System.exit(1);
       }
-      printResults(totalWords, map);
+      progress = new Progress(inputSize(file));
+      FileUtils.setProgress(progress);
+      progress.cancelOnShutdown();
+      progress.start(progressMs, timeoutMs, System.err);
+    }
+
+    if (cached != null) {
+      // Cache hit, the file is not read at all
+      System.out.println("Using cached result from " + cacheDir);
+      totalWords = cached.totalWords;
+      map = cached.map;
+    } else if (mode.equals("hash")) {
+      // Sequential full-file processing with hash map
+      totalWords = countFile(file, map, COMPUTE, stats);
+    } else if (mode.equals("tree")) {
+      // Sequential full-file processing with an ordered tree map
+      map = new TreeMap<>();
+      totalWords = countFile(file, map, COMPUTE, stats);
     } else if (mode.equals("hash2")) {
-      // TODO : base hash, mais on get/put au lieu de compute
+      // Same as hash, but get/put instead of compute
+      totalWords = countFile(file, map, GET_PUT, stats);
     } else if (mode.equals("range")) {
       // Sequential full-file processing with hash map + use of getRange
-      long totalWords = 0;
-      Map<String, Integer> map = new HashMap<>();
-      try (Scanner scanner = new Scanner(FileUtils.getRange(file, 0, fileSize))) {
-        while (scanner.hasNext()) {
-          String word = cleanWord(scanner.next());
-          if (!word.isEmpty()) {
-            totalWords++;
-            map.compute(word, (w, c) -> c == null ? 1 : c + 1);
-          }
-        }
+      if (fileSize > 0) { // getRange rejects empty ranges
+        CounterWorker worker = new CounterWorker(file, 0, fileSize, map, stats);
+        worker.run(); // in the current thread
+        worker.rethrow();
+        stats.phase("open", worker.workerStats.openNanos);
+        totalWords = worker.getTotalWords();
       }
-      printResults(totalWords, map);
 
     } else if (mode.equals("partition")) {
       // Single-threaded, loop over ranges with single map
+      long time = System.nanoTime();
       long[] parts = FileUtils.partition(file, numThreads);
-      long totalWords = 0;
-      Map<String, Integer> map = new HashMap<>();
+      stats.phase("partition", System.nanoTime() - time);
 
       for (int i = 0; i < numThreads; i++) {
-        // TODO work on : (parts[i], parts[i + 1]
+        if (parts[i] == parts[i + 1]) {
+          continue; // fewer boundaries than ranges
+        }
+        CounterWorker worker = new CounterWorker(file, parts[i], parts[i + 1], map, stats);
+        worker.run(); // in the current thread
+        worker.rethrow();
+        stats.phase("open", worker.workerStats.openNanos);
+        totalWords += worker.getTotalWords();
       }
-      printResults(totalWords, map);
 
     } else if (mode.equals("shard")) {
       // Multi-threaded, per-thread local maps, merge after
-      // Based on partition + using CounterWorker
-      
-      // create one thread per partition element
-      
-      // join all threads
-      
-      // collect and merge results
-      
-      // printResults
+      totalWords = shard(file, numThreads, HashMap::new, tokenizers, map, stats);
+
+    } else if (mode.equals("aligned")) {
+      // As shard, but cut at exact size/N offsets with no pre-scan, each
+      // worker aligning its own range on tokens (see AlignedInputStream)
+      long[] parts = FileUtils.split(fileSize, numThreads);
+      totalWords = shard((s, e) -> FileUtils.getAlignedRange(file, s, e), parts, HashMap::new, tokenizers, map, stats);
+
+    } else if (mode.equals("stream")) {
+      // Parallel stream over a WordSpliterator, split at whitespace by the
+      // fork/join pool instead of a precomputed partition
+      long time = System.nanoTime();
+      Map<String, Long> counts;
+      try (Stream<String> words = WordStreams.of(file)) {
+        counts = words.parallel().collect(Collectors.groupingByConcurrent(w -> w, Collectors.counting()));
+      }
+      for (Map.Entry<String, Long> e : counts.entrySet()) {
+        totalWords += e.getValue();
+        map.put(e.getKey(), e.getValue().intValue());
+      }
+      stats.phase("count", System.nanoTime() - time);
+
+    } else if (mode.equals("flow")) {
+      // Reader thread publishing batches of words, counted by a subscriber
+      long time = System.nanoTime();
+      long[] parts = FileUtils.partition(file, numThreads);
+      stats.phase("partition", System.nanoTime() - time);
+
+      time = System.nanoTime();
+      WordPublisher publisher = new WordPublisher(file, parts, WordPublisher.DEFAULT_BATCH_SIZE,
+          WordPublisher.DEFAULT_POOL_SIZE);
+      CountingSubscriber counter = new CountingSubscriber(map);
+      publisher.subscribe(counter);
+      publisher.start();
+      totalWords = counter.await();
+      stats.phase("count", System.nanoTime() - time);
+
+    } else if (mode.equals("pipe")) {
+      // Single reader cutting the stream into chunks, counted by N workers
+      try (InputStream in = stdin ? System.in : new FileInputStream(file)) {
+        totalWords = new PipeCounter(in, numThreads, stats).count(map);
+      }
+
+    } else if (mode.equals("window")) {
+      // Sequential, counts over a sliding window of lines or time, reported
+      // at each bucket rotation; the result is the last window
+      try (InputStream in = stdin ? System.in : new FileInputStream(file)) {
+        WindowCounter counter = countWindow(in, window, stats);
+        totalWords = counter.totalWords();
+        map = counter.snapshot();
+      }
+
+    } else if (mode.equals("index")) {
+      // As shard, but workers record the offsets of each word, written as an
+      // inverted index (see InvertedIndex)
+      long time = System.nanoTime();
+      long[] parts = FileUtils.partition(file, numThreads);
+      stats.phase("partition", System.nanoTime() - time);
+      File out = new File(indexFile != null ? indexFile : filename + ".wfx");
+      totalWords = InvertedIndex.build(file, parts, out, map, stats);
+      System.out.println("Index written to " + out + " (" + out.length() + " bytes)");
+
+    } else if (mode.equals("tfidf")) {
+      // Per-document term frequencies, documents being the files of a
+      // directory or the sections of a file, then the top terms of each
+      // document by tf * idf (see TfIdf)
+      File out = new File(tfidfFile != null ? tfidfFile : filename + ".tfidf");
+      totalWords = new TfIdf(numThreads, top).run(file, Pattern.compile(docSeparator), out, map, stats);
+
+    } else if (mode.equals("watch")) {
+      // Counts only the words of the watch list, with an Aho-Corasick
+      // automaton and per-thread arrays of counts instead of maps
+      if (watchFile == null) {
+        System.err.println("Watch mode needs a list of words: --watch=file");
+        System.exit(1);
+      }
+      long time = System.nanoTime();
+      Set<String> watched = new LinkedHashSet<>();
+      for (String line : Files.readAllLines(Paths.get(watchFile), StandardCharsets.UTF_8)) {
+        String word = cleanWord(line);
+        if (!word.isEmpty()) {
+          watched.add(word);
+        }
+      }
+      AhoCorasick automaton = new AhoCorasick(new ArrayList<>(watched));
+      stats.phase("compile", System.nanoTime() - time);
+      System.out.println("Watching " + watched.size() + " words (" + automaton.states() + " states)");
+      time = System.nanoTime();
+      long[] parts = FileUtils.partition(file, numThreads);
+      stats.phase("partition", System.nanoTime() - time);
+      totalWords = automaton.count(file, parts, map, stats);
+
+    } else if (mode.equals("sample")) {
+      // Estimates from random windows of the file, refined until the time
+      // budget runs out; the counts printed are estimates
+      totalWords = new Sampler(file, numThreads, stats).estimate(budget, 5, map);
+
+    } else if (mode.equals("skiplist")) {
+      // Multi-threaded, one shared ordered map: no merge, no sort for the
+      // alphabetical order (see SkipListCounter)
+      long time = System.nanoTime();
+      long[] parts = FileUtils.partition(file, numThreads);
+      stats.phase("partition", System.nanoTime() - time);
+      SkipListCounter counter = new SkipListCounter();
+      totalWords = counter.count(file, parts, stats);
+      map = counter.counts();
+
+    } else if (mode.equals("multi")) {
+      // One shared scan feeding several aggregations at once, each with its
+      // own per-thread state (see WordSinks)
+      List<WordSink<?>> sinks = WordSinks.parse(sinkNames, map);
+      long time = System.nanoTime();
+      long[] parts = FileUtils.partition(file, numThreads);
+      stats.phase("partition", System.nanoTime() - time);
+      totalWords = WordSinks.scan(file, parts, sinks, tokenizers, stats);
+      for (WordSink<?> sink : sinks) {
+        sink.report(System.out);
+      }
+
+    } else if (mode.equals("field")) {
+      // Counts the values of one column (from 1) of a CSV/TSV file, ranges
+      // being parsed speculatively in and out of quotes (see FieldCounter)
+      if (delim == null) {
+        delim = filename.endsWith(".tsv") ? "\t" : ",";
+      }
+      if (delim.equals("\\t") || delim.equals("tab")) {
+        delim = "\t";
+      }
+      if (delim.length() != 1 || delim.charAt(0) > 0x7F || delim.charAt(0) == '"' || delim.charAt(0) == '\n' || fieldColumn < 1) {
+        System.err.println("Invalid --field or --delim: expected a column from 1 and a single ASCII delimiter.");
+        System.exit(1);
+      }
+      long[] parts = FileUtils.split(fileSize, numThreads);
+      totalWords = new FieldCounter(file, fieldColumn - 1, (byte) delim.charAt(0)).count(parts, map, stats);
+
+    } else if (mode.equals("sortagg")) {
+      // Multi-threaded, words sorted in byte arenas and counted by runs instead
+      // of hashed, sorted runs merged in alphabetical order (see SortAggregator)
+      long time = System.nanoTime();
+      long[] parts = FileUtils.partition(file, numThreads);
+      stats.phase("partition", System.nanoTime() - time);
+      map = new LinkedHashMap<>();
+      totalWords = SortAggregator.count(file, parts, map, stats);
+
+    } else if (mode.equals("multiproc")) {
+      // One worker JVM per partition element, tables merged from temp files
+      totalWords = new MultiProcess(file, numThreads, stats).count(map);
+
+    } else if (mode.equals("offheap")) {
+      // As shard, but all tables are OffHeapMaps, outside of the GC's reach and
+      // freed explicitly once merged (bounded by -XX:MaxDirectMemorySize)
+      map = new OffHeapMap();
+      totalWords = shard(file, numThreads, OffHeapMap::new, tokenizers, map, stats);
+
+    } else if (mode.equals("trie")) {
+      // As shard, but all tables are RadixTries: ordered, prefix sharing
+      map = new RadixTrie();
+      totalWords = shard(file, numThreads, RadixTrie::new, tokenizers, map, stats);
+
+    } else if (mode.equals("utf8")) {
+      // As shard, but words are any Unicode letters, see Utf8Tokenizer
+      totalWords = shard(file, numThreads, HashMap::new, Utf8Tokenizer::new, map, stats);
+
+    } else if (mode.equals("gzip")) {
+      // As shard, on a block gzip file (see BlockGzip), each worker inflating
+      // its own run of blocks
+      long time = System.nanoTime();
+      BlockGzip.Index index = BlockGzip.Index.read(file);
+      long[] parts = index.partition(numThreads);
+      stats.phase("partition", System.nanoTime() - time);
+      if (progress != null) {
+        progress.setTotal(parts[parts.length - 1]); // uncompressed bytes
+      }
+      totalWords = shard((s, e) -> FileUtils.tracked(BlockGzip.getRange(file, index, s, e)), parts, HashMap::new, tokenizers, map, stats);
+
     } else {
       System.err.println("Unknown mode: " + mode);
       System.exit(1);
     }
 
+    boolean cancelled = false;
+    if (progress != null) {
+      progress.stop();
+      FileUtils.setProgress(null);
+      // a cancel after the last read leaves the results whole
+      cancelled = progress.isCancelled() && progress.getBytes() < progress.getTotal();
+      if (cancelled) {
+        System.out.println("Cancelled, partial results over " + progress.getBytes() + " of " + progress.getTotal()
+            + " bytes");
+      }
+    }
+    if (cache != null && cached == null && !cancelled) {
+      long time = System.nanoTime();
+      cache.store(file, cacheKind, totalWords, map);
+      stats.phase("cache", System.nanoTime() - time);
+    }
+    if (mphfFile != null) {
+      // Freeze the vocabulary into a perfect hash table (see PerfectHash)
+      long time = System.nanoTime();
+      PerfectHash table = PerfectHash.build(map, numThreads);
+      table.write(new File(mphfFile));
+      stats.phase("mphf", System.nanoTime() - time);
+      System.out.println(String.format(Locale.ROOT, "Perfect hash of %d words written to %s (%.2f bits/key)",
+          table.size(), mphfFile, table.bitsPerKey()));
+    }
+    if (dumpFile != null) {
+      long time = System.nanoTime();
+      boolean ordered = cached == null && (mode.equals("tree") || mode.equals("trie") || mode.equals("skiplist")
+          || mode.equals("sortagg"));
+      writeAlphabetical(map, ordered, Paths.get(dumpFile));
+      stats.phase("dump", System.nanoTime() - time);
+    }
+    printResults(totalWords, map, stats);
+    if (prefix != null) {
+      printPrefix(map, prefix, stats);
+    }
+    if (map instanceof OffHeapMap) {
+      ((OffHeapMap) map).release();
+    }
+
     long endTime = System.nanoTime();
     long durationMs = (endTime - startTime) / 1_000_000;
     System.out.println("Total runtime: " + durationMs + " ms for mode " + mode);
+    if (stats.isEnabled()) {
+      System.out.println(stats.toJson(filename, mode, endTime - startTime));
+    }
+    if (progress != null) {
+      progress.finish();
+    }
   }
 
-  private static void printResults(long totalWords, Map<String, Integer> map) {
+  /** The bytes of a file, or of the files of a directory. */
+  private static long inputSize(File file) {
+    if (!file.isDirectory()) {
+      return file.length();
+    }
+    long size = 0;
+    File[] files = file.listFiles(File::isFile);
+    for (File f : files == null ? new File[0] : files) {
+      size += f.length();
+    }
+    return size;
+  }
+
+  private static void printResults(long totalWords, Map<String, Integer> map, RunStats stats) {
+    stats.setResult(map);
+    long time = System.nanoTime();
+    List<Map.Entry<String, Integer>> wordList = topByFrequency(map, 5);
+    stats.phase("sort", System.nanoTime() - time);
+
+    time = System.nanoTime();
     System.out.println("Total words: " + totalWords);
     System.out.println("Unique words: " + map.size());
+    for (Map.Entry<String, Integer> entry : wordList) {
+      System.out.println(entry.getValue() + " " + entry.getKey());
+    }
+    stats.phase("print", System.nanoTime() - time);
+  }
 
-    List<Map.Entry<String, Integer>> wordList = new ArrayList<>(map.entrySet());
-    wordList.sort((e1, e2) -> {
-      if (!e1.getValue().equals(e2.getValue())) {
-        return Integer.compare(e2.getValue(), e1.getValue()); // desc freq
+  private static void printPrefix(Map<String, Integer> map, String prefix, RunStats stats) {
+    long time = System.nanoTime();
+    List<Map.Entry<String, Integer>> wordList = topByFrequency(withPrefix(map, prefix), 5);
+    stats.phase("prefix", System.nanoTime() - time);
+    System.out.println("Top words starting with \"" + prefix + "\":");
+    for (Map.Entry<String, Integer> entry : wordList) {
+      System.out.println(entry.getValue() + " " + entry.getKey());
+    }
+  }
+
+  /**
+   * The entries of the map whose word starts with prefix: a subtree of a
+   * RadixTrie, a sub map of a sorted map, otherwise a filtered copy.
+   */
+  static Map<String, Integer> withPrefix(Map<String, Integer> map, String prefix) {
+    if (map instanceof RadixTrie) {
+      return ((RadixTrie) map).prefixMap(prefix);
+    }
+    if (map instanceof NavigableMap) {
+      return ((NavigableMap<String, Integer>) map).subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+    Map<String, Integer> result = new HashMap<>();
+    for (Map.Entry<String, Integer> e : map.entrySet()) {
+      if (e.getKey().startsWith(prefix)) {
+        result.put(e.getKey(), e.getValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes one "word count" line per entry, in alphabetical order.
+   *
+   * @param ordered whether the map already iterates in alphabetical order, as
+   *                in tree, trie and skiplist modes; otherwise its keys are
+   *                sorted first
+   */
+  static void writeAlphabetical(Map<String, Integer> map, boolean ordered, Path path) throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+      if (ordered) {
+        for (Map.Entry<String, Integer> e : map.entrySet()) {
+          out.println(e.getKey() + " " + e.getValue());
+        }
       } else {
-        return e1.getKey().compareTo(e2.getKey()); // asc alpha
+        List<String> words = new ArrayList<>(map.keySet());
+        words.sort(null);
+        for (String word : words) {
+          out.println(word + " " + map.get(word));
+        }
       }
-    });
+    }
+  }
 
-    for (Map.Entry<String, Integer> entry : wordList.subList(0, Math.min(5, wordList.size()))) {
-      System.out.println(entry.getValue() + " " + entry.getKey());
+  /** Orders entries by decreasing frequency, ties broken by alphabetical order. */
+  static final Comparator<Map.Entry<String, Integer>> BY_FREQUENCY = (e1, e2) -> {
+    if (!e1.getValue().equals(e2.getValue())) {
+      return Integer.compare(e2.getValue(), e1.getValue()); // desc freq
+    } else {
+      return e1.getKey().compareTo(e2.getKey()); // asc alpha
+    }
+  };
+
+  /**
+   * Lists the entries of the map by decreasing frequency, ties broken by
+   * alphabetical order.
+   */
+  static List<Map.Entry<String, Integer>> sortByFrequency(Map<String, Integer> map) {
+    List<Map.Entry<String, Integer>> wordList = new ArrayList<>(map.entrySet());
+    wordList.sort(BY_FREQUENCY);
+    return wordList;
+  }
+
+  /**
+   * The k first entries of sortByFrequency(map), selected with a bounded heap:
+   * O(n log k) time and O(k) extra memory instead of copying and sorting all
+   * entries.
+   */
+  static List<Map.Entry<String, Integer>> topByFrequency(Map<String, Integer> map, int k) {
+    // heap of the best k so far, worst on top
+    PriorityQueue<Map.Entry<String, Integer>> heap = new PriorityQueue<>(k + 1, BY_FREQUENCY.reversed());
+    for (Map.Entry<String, Integer> e : map.entrySet()) {
+      if (heap.size() < k) {
+        heap.add(e);
+      } else if (k > 0 && BY_FREQUENCY.compare(e, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(e);
+      }
     }
+    List<Map.Entry<String, Integer>> top = new ArrayList<>(heap);
+    top.sort(BY_FREQUENCY);
+    return top;
   }
 
-  private static String cleanWord(String word) {
+  static String cleanWord(String word) {
     return word.replaceAll("[^a-zA-Z]", "").toLowerCase();
   }
 }
\ No newline at end of file
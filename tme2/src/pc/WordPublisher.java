@@ -0,0 +1,288 @@
+package pc;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes the cleaned words of a file as batches, to any number of
+ * subscribers sharing a single scan.
+ *
+ * Subscribers are registered with subscribe() before the scan is launched by
+ * start(). A single reader thread then tokenizes the given byte ranges in
+ * order; each subscriber is fed by its own delivery thread, so several analyses
+ * run concurrently on the same words.
+ *
+ * Memory is bounded: batches come from a fixed pool and are reused once every
+ * subscriber has processed them (see {@link WordBatch}), and the reader only
+ * emits a batch when every active subscriber has requested one, so the scan
+ * proceeds at the pace of the slowest subscriber.
+ */
+public class WordPublisher implements Flow.Publisher<WordBatch> {
+
+  static final int DEFAULT_BATCH_SIZE = 1024;
+  static final int DEFAULT_POOL_SIZE = 8;
+
+  private final File file;
+  private final long[] offsets;
+  private final ArrayDeque<WordBatch> pool = new ArrayDeque<>();
+  private final List<BatchSubscription> subscriptions = new ArrayList<>();
+  private boolean started;
+
+  /**
+   * @param file      the file to read
+   * @param offsets   consecutive ranges [offsets[i], offsets[i+1]) to read, as
+   *                  returned by FileUtils.partition
+   * @param batchSize number of words per batch
+   * @param poolSize  number of batches in the pool, which bounds memory use
+   */
+  public WordPublisher(File file, long[] offsets, int batchSize, int poolSize) {
+    this.file = file;
+    this.offsets = offsets;
+    for (int i = 0; i < poolSize; i++) {
+      pool.add(new WordBatch(batchSize));
+    }
+  }
+
+  /** A publisher of the whole file. */
+  public WordPublisher(File file) {
+    this(file, new long[] { 0, file.length() }, DEFAULT_BATCH_SIZE, DEFAULT_POOL_SIZE);
+  }
+
+  @Override
+  public synchronized void subscribe(Flow.Subscriber<? super WordBatch> subscriber) {
+    BatchSubscription s = new BatchSubscription(subscriber);
+    if (started) {
+      subscriber.onSubscribe(s);
+      s.cancel();
+      subscriber.onError(new IllegalStateException("Scan already started, subscribe before start()"));
+      return;
+    }
+    subscriptions.add(s);
+    subscriber.onSubscribe(s);
+  }
+
+  /** Launches the reader and delivery threads. */
+  public void start() {
+    List<BatchSubscription> subs;
+    synchronized (this) {
+      if (started) {
+        throw new IllegalStateException("Already started");
+      }
+      started = true;
+      subs = new ArrayList<>(subscriptions);
+    }
+    for (BatchSubscription s : subs) {
+      s.start();
+    }
+    Thread reader = new Thread(this::scan, "word-publisher");
+    reader.start();
+  }
+
+  /** Reader thread: fill batches from the ranges and emit them. */
+  private void scan() {
+    Set<WordSpliterator> open = new HashSet<>();
+    try {
+      WordBatch batch = acquire();
+      for (int i = 0; i + 1 < offsets.length; i++) {
+        WordSpliterator words = new WordSpliterator(file, offsets[i], offsets[i + 1], open);
+        boolean more = true;
+        while (more && batch != null) {
+          more = words.tryAdvance(batch::add);
+          if (batch.isFull()) {
+            batch = emit(batch) ? acquire() : null;
+          }
+        }
+        words.close();
+        if (batch == null) {
+          break; // every subscriber cancelled
+        }
+      }
+      if (batch != null && batch.size() > 0) {
+        emit(batch);
+      }
+      for (BatchSubscription s : activeSubscriptions()) {
+        s.complete(null);
+      }
+    } catch (Exception e) {
+      for (BatchSubscription s : activeSubscriptions()) {
+        s.complete(e);
+      }
+    }
+  }
+
+  /** Takes a free batch from the pool, waiting for one to be released. */
+  private synchronized WordBatch acquire() throws InterruptedException {
+    while (pool.isEmpty()) {
+      wait();
+    }
+    return pool.poll();
+  }
+
+  /** Called by delivery threads once a batch has been processed. */
+  private synchronized void release(WordBatch batch) {
+    batch.setPending(batch.getPending() - 1);
+    if (batch.getPending() == 0) {
+      batch.clear();
+      pool.add(batch);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Waits until every active subscriber has demand, then hands the batch to each
+   * of them.
+   *
+   * @return false if every subscriber has cancelled, i.e. the scan can stop
+   */
+  private boolean emit(WordBatch batch) throws InterruptedException {
+    List<BatchSubscription> targets;
+    synchronized (this) {
+      while (true) {
+        targets = activeSubscriptions();
+        boolean ready = true;
+        for (BatchSubscription s : targets) {
+          if (s.demand == 0) {
+            ready = false;
+          }
+        }
+        if (ready) {
+          break;
+        }
+        wait();
+      }
+      if (targets.isEmpty()) {
+        batch.clear();
+        pool.add(batch);
+        return false;
+      }
+      batch.setPending(targets.size());
+      for (BatchSubscription s : targets) {
+        s.demand--;
+        s.queue.add(batch);
+      }
+      notifyAll();
+    }
+    return true;
+  }
+
+  private synchronized List<BatchSubscription> activeSubscriptions() {
+    List<BatchSubscription> active = new ArrayList<>();
+    for (BatchSubscription s : subscriptions) {
+      if (!s.cancelled) {
+        active.add(s);
+      }
+    }
+    return active;
+  }
+
+  /**
+   * The link to one subscriber, with its own delivery thread and queue. All
+   * fields but subscriber are guarded by the publisher's lock.
+   */
+  private class BatchSubscription implements Flow.Subscription, Runnable {
+    private final Flow.Subscriber<? super WordBatch> subscriber;
+    // batches handed to this subscriber, released by its delivery thread
+    private final ArrayDeque<WordBatch> queue = new ArrayDeque<>();
+    private long demand;
+    private boolean cancelled;
+    private boolean done;
+    private Throwable error;
+
+    BatchSubscription(Flow.Subscriber<? super WordBatch> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    void start() {
+      Thread t = new Thread(this, "word-subscriber");
+      t.start();
+    }
+
+    @Override
+    public void request(long n) {
+      synchronized (WordPublisher.this) {
+        if (n <= 0) {
+          error = new IllegalArgumentException("request(" + n + "), rule 3.9");
+          cancelled = true;
+        } else {
+          demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+        WordPublisher.this.notifyAll();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (WordPublisher.this) {
+        cancelled = true;
+        WordPublisher.this.notifyAll();
+      }
+    }
+
+    void complete(Throwable e) {
+      synchronized (WordPublisher.this) {
+        done = true;
+        if (error == null) {
+          error = e;
+        }
+        WordPublisher.this.notifyAll();
+      }
+    }
+
+    /** Delivery thread: signals onNext for each queued batch, then completion. */
+    @Override
+    public void run() {
+      while (true) {
+        WordBatch batch;
+        synchronized (WordPublisher.this) {
+          while (queue.isEmpty() && !done && !cancelled) {
+            try {
+              WordPublisher.this.wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              cancelled = true;
+            }
+          }
+          batch = queue.poll();
+          if (batch == null || cancelled) {
+            // drop what is left, but give the batches back to the pool
+            if (batch != null) {
+              queue.addFirst(batch);
+            }
+            while (!queue.isEmpty()) {
+              release(queue.poll());
+            }
+            break;
+          }
+        }
+        try {
+          subscriber.onNext(batch);
+        } catch (Throwable t) {
+          synchronized (WordPublisher.this) {
+            cancelled = true;
+            if (error == null) {
+              error = t;
+            }
+            WordPublisher.this.notifyAll();
+          }
+        }
+        release(batch);
+      }
+      Throwable failure;
+      boolean completed;
+      synchronized (WordPublisher.this) {
+        failure = error;
+        completed = done && !cancelled;
+      }
+      if (failure != null) {
+        subscriber.onError(failure);
+      } else if (completed) {
+        subscriber.onComplete();
+      }
+    }
+  }
+}
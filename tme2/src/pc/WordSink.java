@@ -0,0 +1,30 @@
+package pc;
+
+import java.io.PrintStream;
+
+/**
+ * An aggregation over the words of a file, fed by a shared parallel scan (used
+ * in "multi" mode, see WordSinks.scan).
+ *
+ * Each worker of the scan asks every sink for a partial state of its own and
+ * passes it each word it reads, so sinks need no synchronization while
+ * scanning. Once the workers are done, their partial states are merged into
+ * the sink one at a time, in partition order, then the sink reports its
+ * result.
+ *
+ * @param <P> the per-worker state
+ */
+interface WordSink<P> {
+
+  /** A fresh partial state for one worker. */
+  P newPartial();
+
+  /** Adds one word to a partial state, in the worker's thread. */
+  void accept(P partial, String word);
+
+  /** Merges a finished partial state into the result, in the calling thread. */
+  void merge(P partial);
+
+  /** Prints the merged result. */
+  void report(PrintStream out);
+}
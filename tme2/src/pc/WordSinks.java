@@ -0,0 +1,258 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * The shared scan feeding several WordSinks, and the standard sinks.
+ *
+ * The file is partitioned and tokenized once, as in "shard" mode, and every
+ * word is passed to the partial state of every sink in the worker's thread; the
+ * cost of reading and tokenizing is paid once for all the aggregations.
+ */
+class WordSinks {
+
+  /** The names of the standard sinks, as given to parse. */
+  static final List<String> NAMES = List.of("counts", "unique", "longest");
+
+  private WordSinks() {
+  }
+
+  /** A sink and the partial state of one worker, bound together. */
+  private static class Attached<P> {
+    private final WordSink<P> sink;
+    private final P partial;
+
+    Attached(WordSink<P> sink) {
+      this.sink = sink;
+      this.partial = sink.newPartial();
+    }
+
+    void accept(String word) {
+      sink.accept(partial, word);
+    }
+
+    void merge() {
+      sink.merge(partial);
+    }
+  }
+
+  /** Tokenizes the byte range [start, end) of a file into all sinks. */
+  private static class ScanWorker extends RangeWorker {
+    private final File file;
+    private final List<Attached<?>> partials = new ArrayList<>();
+    private final Tokenizer tokenizer;
+    private final RunStats stats;
+
+    ScanWorker(File file, long start, long end, List<WordSink<?>> sinks, Tokenizer tokenizer, RunStats stats) {
+      super(start, end, stats);
+      this.file = file;
+      this.tokenizer = tokenizer;
+      this.stats = stats;
+      for (WordSink<?> sink : sinks) {
+        partials.add(new Attached<>(sink));
+      }
+    }
+
+    @Override
+    void work() throws IOException {
+      try (InputStream in = FileUtils.getRange(file, start, end)) {
+        if (tokenizer == null) {
+          totalWords = WordFrequency.countWords(new Scanner(in), null, (map, word) -> accept(word), stats,
+              workerStats);
+        } else {
+          totalWords = tokenizer.tokenize(in, this::accept);
+        }
+      }
+    }
+
+    private void accept(String word) {
+      for (Attached<?> partial : partials) {
+        partial.accept(word);
+      }
+    }
+  }
+
+  /**
+   * Scans each range [parts[i], parts[i+1]) of the file in its own thread,
+   * feeding every sink, then merges the partial states of each sink.
+   *
+   * @param tokenizers gives one tokenizer per worker, or null to use a Scanner
+   * @return the number of words read
+   * @throws IOException if reading fails
+   */
+  static long scan(File file, long[] parts, List<WordSink<?>> sinks, Supplier<Tokenizer> tokenizers,
+      RunStats stats) throws IOException {
+    List<ScanWorker> workers = RangeWorker.runAll(parts, (start, end) -> new ScanWorker(file, start, end, sinks,
+        tokenizers == null ? null : tokenizers.get(), stats));
+
+    long time = System.nanoTime();
+    long totalWords = 0;
+    for (ScanWorker worker : workers) {
+      totalWords += worker.totalWords;
+      for (Attached<?> partial : worker.partials) {
+        partial.merge();
+      }
+    }
+    stats.phase("merge", System.nanoTime() - time);
+    return totalWords;
+  }
+
+  /**
+   * The sinks named in a comma separated list of NAMES.
+   *
+   * @param counts the map the "counts" sink merges into
+   * @throws IllegalArgumentException on an unknown name
+   */
+  static List<WordSink<?>> parse(String names, Map<String, Integer> counts) {
+    List<WordSink<?>> sinks = new ArrayList<>();
+    for (String name : names.split(",")) {
+      switch (name.trim()) {
+      case "counts":
+        sinks.add(new CountSink(counts));
+        break;
+      case "unique":
+        sinks.add(new UniqueSink());
+        break;
+      case "longest":
+        sinks.add(new LongestSink(5));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown sink: " + name);
+      }
+    }
+    return sinks;
+  }
+
+  /** Word counts, merged into a given map as in "shard" mode. */
+  static class CountSink implements WordSink<Map<String, Integer>> {
+    private final Map<String, Integer> map;
+
+    CountSink(Map<String, Integer> map) {
+      this.map = map;
+    }
+
+    @Override
+    public Map<String, Integer> newPartial() {
+      return new HashMap<>();
+    }
+
+    @Override
+    public void accept(Map<String, Integer> partial, String word) {
+      WordFrequency.COMPUTE.add(partial, word);
+    }
+
+    @Override
+    public void merge(Map<String, Integer> partial) {
+      WordFrequency.mergeInto(map, partial);
+    }
+
+    @Override
+    public void report(PrintStream out) {
+      out.println("Counts: " + map.size() + " entries (see below)");
+    }
+  }
+
+  /** The number of distinct words. */
+  static class UniqueSink implements WordSink<Set<String>> {
+    private final Set<String> words = new HashSet<>();
+
+    @Override
+    public Set<String> newPartial() {
+      return new HashSet<>();
+    }
+
+    @Override
+    public void accept(Set<String> partial, String word) {
+      partial.add(word);
+    }
+
+    @Override
+    public void merge(Set<String> partial) {
+      words.addAll(partial);
+    }
+
+    @Override
+    public void report(PrintStream out) {
+      out.println("Distinct words: " + words.size());
+    }
+  }
+
+  /**
+   * The k longest distinct words, ties broken by alphabetical order; each
+   * worker keeps a bounded heap of its own k longest.
+   */
+  static class LongestSink implements WordSink<LongestSink.Longest> {
+    private static final Comparator<String> BY_LENGTH = Comparator.comparingInt(String::length).reversed()
+        .thenComparing(Comparator.naturalOrder());
+
+    private final int k;
+    private final Longest result;
+
+    /** The k best words so far, worst on top. */
+    static class Longest {
+      private final int k;
+      private final PriorityQueue<String> heap = new PriorityQueue<>(BY_LENGTH.reversed());
+      private final Set<String> members = new HashSet<>();
+
+      Longest(int k) {
+        this.k = k;
+      }
+
+      void offer(String word) {
+        if (members.contains(word)) {
+          return;
+        }
+        if (heap.size() < k) {
+          heap.add(word);
+          members.add(word);
+        } else if (k > 0 && BY_LENGTH.compare(word, heap.peek()) < 0) {
+          members.remove(heap.poll());
+          heap.add(word);
+          members.add(word);
+        }
+      }
+    }
+
+    LongestSink(int k) {
+      this.k = k;
+      this.result = new Longest(k);
+    }
+
+    @Override
+    public Longest newPartial() {
+      return new Longest(k);
+    }
+
+    @Override
+    public void accept(Longest partial, String word) {
+      partial.offer(word);
+    }
+
+    @Override
+    public void merge(Longest partial) {
+      for (String word : partial.heap) {
+        result.offer(word);
+      }
+    }
+
+    @Override
+    public void report(PrintStream out) {
+      List<String> words = new ArrayList<>(result.heap);
+      words.sort(BY_LENGTH);
+      out.println("Longest words: " + String.join(", ", words));
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A Spliterator over the cleaned words of the byte range [start, end) of a
+ * file.
+ *
+ * trySplit() cuts the range in half and moves the cut to the next whitespace,
+ * as FileUtils.partition does, so that no token is ever split between two
+ * spliterators. A spliterator can only be split before its first tryAdvance.
+ */
+class WordSpliterator implements Spliterator<String> {
+
+  /** Ranges smaller than this are not split further. */
+  static final long MIN_SPLIT = 64 * 1024;
+
+  private final File file;
+  private long start;
+  private final long end;
+  private final Set<WordSpliterator> open;
+
+  private Reader reader;
+  private final char[] buf = new char[8192];
+  private int pos;
+  private int limit;
+  private final StringBuilder token = new StringBuilder();
+
+  /**
+   * @param file  the file to read
+   * @param start first byte (inclusive), must be a token boundary
+   * @param end   last byte (exclusive), must be a token boundary
+   * @param open  spliterators with an open reader are registered here (and
+   *              shared with the ones split from this one), so that they can be
+   *              closed if the stream is not fully consumed
+   */
+  public WordSpliterator(File file, long start, long end, Set<WordSpliterator> open) {
+    this.file = file;
+    this.start = start;
+    this.end = end;
+    this.open = open;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super String> action) {
+    try {
+      if (reader == null) {
+        if (start >= end) {
+          return false;
+        }
+        reader = new InputStreamReader(FileUtils.getRange(file, start, end), StandardCharsets.UTF_8);
+        open.add(this);
+      }
+      String word;
+      while ((word = nextToken()) != null) {
+        word = WordFrequency.cleanWord(word);
+        if (!word.isEmpty()) {
+          action.accept(word);
+          return true;
+        }
+      }
+      close();
+      return false;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** The next whitespace delimited token, or null at the end of the range. */
+  private String nextToken() throws IOException {
+    token.setLength(0);
+    while (true) {
+      if (pos == limit) {
+        limit = reader.read(buf);
+        pos = 0;
+        if (limit <= 0) {
+          limit = 0;
+          return token.length() > 0 ? token.toString() : null;
+        }
+      }
+      char c = buf[pos++];
+      if (Character.isWhitespace(c)) {
+        if (token.length() > 0) {
+          return token.toString();
+        }
+      } else {
+        token.append(c);
+      }
+    }
+  }
+
+  @Override
+  public Spliterator<String> trySplit() {
+    if (reader != null || end - start < 2 * MIN_SPLIT) {
+      return null;
+    }
+    long cut;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      cut = FileUtils.nextBoundary(raf, start + (end - start) / 2, end);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (cut < 0 || cut >= end) {
+      return null; // no whitespace in the second half
+    }
+    WordSpliterator prefix = new WordSpliterator(file, start, cut, open);
+    start = cut;
+    return prefix;
+  }
+
+  /** Closes the underlying file, if it is open. */
+  void close() throws IOException {
+    if (reader != null) {
+      open.remove(this);
+      reader.close();
+      reader = null;
+      start = end;
+    }
+  }
+
+  /** An estimate in bytes, which is all trySplit needs to balance ranges. */
+  @Override
+  public long estimateSize() {
+    return end - start;
+  }
+
+  @Override
+  public int characteristics() {
+    return ORDERED | NONNULL | IMMUTABLE;
+  }
+}
@@ -0,0 +1,55 @@
+package pc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streams of the cleaned words of a file, for ad-hoc aggregations.
+ *
+ * The streams are backed by a {@link WordSpliterator}, so that parallel
+ * pipelines split the file at whitespace and count each word exactly once,
+ * e.g.
+ *
+ * <pre>
+ * try (Stream&lt;String&gt; words = WordStreams.of(file)) {
+ *   Map&lt;String, Long&gt; counts = words.parallel()
+ *       .collect(Collectors.groupingByConcurrent(w -&gt; w, Collectors.counting()));
+ * }
+ * </pre>
+ *
+ * Files are opened lazily and closed when their range is exhausted; close the
+ * stream to release them early if the pipeline short-circuits.
+ */
+public class WordStreams {
+
+  private WordStreams() {
+  }
+
+  /** A sequential stream of the words of the file, call parallel() to split it. */
+  public static Stream<String> of(File file) {
+    return of(file, 0, file.length());
+  }
+
+  /**
+   * A sequential stream of the words of the byte range [start, end) of the file,
+   * which must be cut at token boundaries (e.g. offsets of FileUtils.partition).
+   */
+  public static Stream<String> of(File file, long start, long end) {
+    Set<WordSpliterator> open = ConcurrentHashMap.newKeySet();
+    return StreamSupport.stream(new WordSpliterator(file, start, end, open), false).onClose(() -> {
+      for (WordSpliterator s : new ArrayList<>(open)) {
+        try {
+          s.close();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    });
+  }
+}